@@ -0,0 +1,85 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * What the goals need of a Maven build: the project receiving the published
+ * properties and the plugin context they share. The mongod version and the
+ * distribution directory come from the {@code embedmongo.version} and
+ * {@code embedmongo.distributionDirectory} system properties, the
+ * distribution has to be cached there already, e.g. by
+ * {@code mvn mongo:mongo-warmup}.
+ */
+class BenchmarkBuild {
+
+    static final String VERSION = System.getProperty("embedmongo.version", "7.0.14");
+    static final File DISTRIBUTION_DIRECTORY = new File(System.getProperty("embedmongo.distributionDirectory",
+          System.getProperty("user.home") + "/.m2/embedmongo"));
+
+    private final MavenProject project = new MavenProject();
+    private final Map<Object, Object> context = new HashMap<>();
+    private NetworkUtils.PortReservation port;
+
+    <T extends AbstractEmbeddedMongoMojo> T configure(T mojo) {
+        mojo.project = project;
+        mojo.setPluginContext(context);
+        return mojo;
+    }
+
+    /**
+     * Starts mongod on a port reserved until {@link #stop()}, so that
+     * benchmarks running in parallel forks do not pick the same one.
+     */
+    void start(StartMojo.Profile profile) throws MojoExecutionException, MojoFailureException {
+        try {
+            port = NetworkUtils.reserveRandomPort();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to reserve a random port", e);
+        }
+        configure(new StartMojo(port.getPort(), VERSION, DISTRIBUTION_DIRECTORY, profile)).execute();
+    }
+
+    void stop() throws MojoExecutionException, MojoFailureException {
+        try {
+            configure(new StopMojo(DISTRIBUTION_DIRECTORY)).execute();
+        } finally {
+            if (port != null) {
+                try {
+                    port.close();
+                } catch (IOException e) {
+                    throw new MojoExecutionException("Unable to release port " + port.getPort(), e);
+                }
+                port = null;
+            }
+        }
+    }
+
+    int getPort() {
+        return Integer.parseInt(project.getProperties().getProperty("embedmongo.port"));
+    }
+}
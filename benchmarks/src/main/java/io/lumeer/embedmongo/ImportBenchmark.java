@@ -0,0 +1,102 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the {@code mongo-import} goal importing a generated JSON array
+ * into a running mongod, the collection is dropped by each import.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+    private static final long IMPORT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    @Param({"1000", "100000", "1000000"})
+    public int documents;
+
+    @Param({"DRIVER", "PROCESS"})
+    public MongoImportMojo.ImportEngine engine;
+
+    private BenchmarkBuild build;
+    private Path fixture;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, MojoExecutionException, MojoFailureException {
+        fixture = writeFixture(documents);
+        build = new BenchmarkBuild();
+        build.start(StartMojo.Profile.DEFAULT);
+    }
+
+    @Benchmark
+    public void importFixture() throws MojoExecutionException, MojoFailureException {
+        ImportDataConfig[] imports = {
+              new ImportDataConfig("benchmark", "documents", fixture.toString(), true, false, IMPORT_TIMEOUT_MILLIS)
+        };
+        build.configure(new MongoImportMojo(imports, build.getPort(), BenchmarkBuild.VERSION, BenchmarkBuild.DISTRIBUTION_DIRECTORY, engine))
+              .execute();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException, MojoExecutionException, MojoFailureException {
+        build.stop();
+        Files.deleteIfExists(fixture);
+    }
+
+    static Path writeFixture(int documents) throws IOException {
+        Path fixture = Files.createTempFile("embedmongo-benchmark", ".json");
+        try (Writer writer = Files.newBufferedWriter(fixture, StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (int i = 0; i < documents; i++) {
+                writer.write("{\"_id\": " + i + ", \"name\": \"document " + i + "\", \"value\": " + (i * 0.5)
+                      + ", \"tags\": [\"benchmark\", \"fixture\"], \"nested\": {\"index\": " + i + ", \"even\": " + (i % 2 == 0) + "}}");
+                writer.write(i + 1 < documents ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        }
+        return fixture;
+    }
+}
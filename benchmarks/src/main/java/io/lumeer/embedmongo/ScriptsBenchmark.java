@@ -0,0 +1,91 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the {@code mongo-scripts} goal running a generated script of
+ * {@code insertOne} statements, without a changelog. The {@code mongo-reset}
+ * goal drops the databases before each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptsBenchmark {
+
+    @Param({"1000", "10000"})
+    public int statements;
+
+    private BenchmarkBuild build;
+    private Path scriptsDirectory;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, MojoExecutionException, MojoFailureException {
+        scriptsDirectory = Files.createTempDirectory("embedmongo-benchmark");
+        try (Writer writer = Files.newBufferedWriter(scriptsDirectory.resolve("V1__documents.js"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < statements; i++) {
+                writer.write("db.documents.insertOne({\"_id\": " + i + ", \"name\": \"document " + i + "\"});\n");
+            }
+        }
+
+        build = new BenchmarkBuild();
+        build.start(StartMojo.Profile.DEFAULT);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() throws MojoExecutionException, MojoFailureException {
+        build.configure(new MongoResetMojo()).execute();
+    }
+
+    @Benchmark
+    public void executeScripts() throws MojoExecutionException, MojoFailureException {
+        build.configure(new MongoScriptsMojo(scriptsDirectory.toFile(), build.getPort(), "benchmark", "UTF-8")).execute();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException, MojoExecutionException, MojoFailureException {
+        build.stop();
+        DataSnapshot.delete(scriptsDirectory);
+    }
+}
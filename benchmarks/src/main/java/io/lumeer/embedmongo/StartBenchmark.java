@@ -0,0 +1,84 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of the {@code start} goal until mongod accepts connections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartBenchmark {
+
+    @Param({"DEFAULT", "EPHEMERAL"})
+    public StartMojo.Profile profile;
+
+    private BenchmarkBuild build;
+
+    @Setup(Level.Iteration)
+    public void newBuild() {
+        build = new BenchmarkBuild();
+    }
+
+    /**
+     * The first start in a new JVM, as in a single {@code mvn verify}.
+     */
+    @Benchmark
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public void coldStart() throws MojoExecutionException, MojoFailureException {
+        build.start(profile);
+    }
+
+    /**
+     * Starts after the plugin classes are loaded and compiled, and the
+     * binary is in the file system cache.
+     */
+    @Benchmark
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @Fork(1)
+    public void warmStart() throws MojoExecutionException, MojoFailureException {
+        build.start(profile);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws MojoExecutionException, MojoFailureException {
+        build.stop();
+    }
+}
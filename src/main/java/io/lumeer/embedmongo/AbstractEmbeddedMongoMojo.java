@@ -18,14 +18,46 @@
  */
 package io.lumeer.embedmongo;
 
+import static org.apache.commons.lang3.StringUtils.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.settings.Settings;
 
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
 import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.ImmutableMongod;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.embed.mongo.types.DistributionBaseUrl;
+import de.flapdoodle.embed.process.archives.ExtractedFileSet;
+import de.flapdoodle.embed.process.config.DownloadConfig;
+import de.flapdoodle.embed.process.transitions.DownloadPackage;
+import de.flapdoodle.embed.process.transitions.ImmutableDownloadPackage;
+import de.flapdoodle.net.ProxyFactory;
+import de.flapdoodle.reverse.Transition;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.Transitions;
+import de.flapdoodle.reverse.transitions.Start;
+
+import com.mongodb.ConnectionString;
 
 /**
  * Created by pablo on 28/03/15.
@@ -71,9 +103,66 @@ public abstract class AbstractEmbeddedMongoMojo extends AbstractMojo {
     @Parameter(property = "embedmongo.wait", defaultValue = "false")
     private boolean wait;
 
+    /**
+     * The base URL to be used when downloading MongoDB
+     *
+     * @since 0.1.10
+     */
+    @Parameter(property = "embedmongo.downloadPath", defaultValue = "http://fastdl.mongodb.org")
+    private String downloadPath;
+
+    /**
+     * Directory caching the downloaded archives and the extracted binaries,
+     * shared by all builds on the machine.
+     */
+    @Parameter(property = "embedmongo.distributionDirectory", defaultValue = "${user.home}/.m2/embedmongo")
+    private File distributionDirectory;
+
+    /**
+     * Never download MongoDB, only use distributions already present in
+     * {@code distributionDirectory}. Follows the Maven offline mode by default.
+     */
+    @Parameter(property = "embedmongo.offline", defaultValue = "${settings.offline}")
+    private boolean offline;
+
+    /**
+     * Maximum number of connections of the client shared by the goals.
+     */
+    @Parameter(property = "embedmongo.connectionPoolSize", defaultValue = "100")
+    private int connectionPoolSize = 100;
+
+    /**
+     * Connect timeout of the shared client in milliseconds.
+     */
+    @Parameter(property = "embedmongo.connectTimeout", defaultValue = "10000")
+    private long connectTimeout = 10000;
+
+    /**
+     * How long the shared client waits for the server to become available, in milliseconds.
+     */
+    @Parameter(property = "embedmongo.serverSelectionTimeout", defaultValue = "30000")
+    private long serverSelectionTimeout = 30000;
+
+    /**
+     * {@code project} to run a server for each module, or {@code session} to
+     * share one server between all modules of the build. It is started by the
+     * first module and stopped by the last one using this plugin.
+     */
+    @Parameter(property = "embedmongo.scope", defaultValue = "project")
+    private String scope = "project";
+
     @Parameter( defaultValue = "${project}", readonly = true )
     protected MavenProject project;
 
+    @Parameter( defaultValue = "${session.executionRootDirectory}", readonly = true )
+    private String executionRootDirectory;
+
+    @Parameter( defaultValue = "${session.request.startTime}", readonly = true )
+    private Date sessionStartTime;
+
+    @Parameter( defaultValue = "${settings}", readonly = true )
+    protected Settings settings;
+
     public AbstractEmbeddedMongoMojo() {
     }
 
@@ -81,6 +170,17 @@ public abstract class AbstractEmbeddedMongoMojo extends AbstractMojo {
         this.port = port;
     }
 
+    /**
+     * For use outside of Maven, only distributions already cached in
+     * {@code distributionDirectory} are used.
+     */
+    AbstractEmbeddedMongoMojo(int port, String version, File distributionDirectory) {
+        this.port = port;
+        this.version = version;
+        this.distributionDirectory = distributionDirectory;
+        this.offline = true;
+    }
+
     @Override
     public final void execute() throws MojoExecutionException, MojoFailureException {
         if(skip) {
@@ -123,8 +223,153 @@ public abstract class AbstractEmbeddedMongoMojo extends AbstractMojo {
         }
     }
 
+    /**
+     * Looks for the mongod started by {@link StartMojo} in the plugin context,
+     * then for the first host of the published {@code embedmongo.connectionString}
+     * and falls back to {@code embedmongo.port} on the loopback address.
+     *
+     * @return address of the server the goals of this build use.
+     */
+    @SuppressWarnings("unchecked")
+    protected ServerAddress getServerAddress() {
+        if (getPluginContext() != null) {
+            TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) getPluginContext().get(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME);
+
+            if (mongod != null && mongod.current() != null && mongod.current().isAlive()) {
+                return mongod.current().getServerAddress();
+            }
+        }
+
+        String connectionString = project.getProperties().getProperty("embedmongo.connectionString");
+        if (StringUtils.isNotBlank(connectionString)) {
+            com.mongodb.ServerAddress address = new com.mongodb.ServerAddress(new ConnectionString(connectionString).getHosts().get(0));
+            return ServerAddress.of(address.getHost(), address.getPort());
+        }
+
+        return ServerAddress.of(InetAddress.getLoopbackAddress(), getPort());
+    }
+
     public abstract void executeStart() throws MojoExecutionException, MojoFailureException;
 
+    /**
+     * @return whether {@link StartMojo} restored an already seeded data directory.
+     */
+    protected boolean isRestoredFromSnapshot() {
+        return getPluginContext() != null
+              && getPluginContext().get(StartMojo.SNAPSHOT_CONTEXT_PROPERTY_NAME) instanceof DataSnapshot snapshot
+              && snapshot.isRestored();
+    }
+
+    /**
+     * Borrows the client shared by all goals of this build for the given server.
+     * The lease has to be closed, the client itself is closed by {@link StopMojo}.
+     */
+    protected MongoClientRegistry.Lease acquireClient(String host, int port) {
+        return getClientRegistry().acquire(host, port);
+    }
+
+    protected void evictClient(String host, int port) {
+        getClientRegistry().evict(host, port);
+    }
+
+    /**
+     * Drops the databases the first time a goal of this build uses them, when
+     * {@link StartMojo} reuses a mongod that kept the data of earlier builds.
+     */
+    @SuppressWarnings("unchecked")
+    protected void resetReusedDatabases(String host, int port, Collection<String> databases) {
+        if (!(getPluginContext().get(StartMojo.RESET_DATABASES_CONTEXT_PROPERTY_NAME) instanceof Set<?> reset)) {
+            return;
+        }
+
+        List<String> pending = databases.stream().distinct().filter(((Set<String>) reset)::add).toList();
+        if (!pending.isEmpty()) {
+            try (MongoClientRegistry.Lease lease = acquireClient(host, port)) {
+                pending.forEach(database -> lease.getClient().getDatabase(database).drop());
+            }
+            getLog().info("Reset database(s) " + pending + " of the reused mongod.");
+        }
+    }
+
+    private MongoClientRegistry getClientRegistry() {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+
+        synchronized (context) {
+            return (MongoClientRegistry) context.computeIfAbsent(StartMojo.CLIENTS_CONTEXT_PROPERTY_NAME,
+                  key -> new MongoClientRegistry(connectionPoolSize, connectTimeout, serverSelectionTimeout));
+        }
+    }
+
+    protected DistributionCache getDistributionCache() {
+        return new DistributionCache(distributionDirectory.toPath(), offline);
+    }
+
+    /**
+     * @return a mongod builder downloading from {@code downloadPath} into the distribution cache.
+     */
+    protected ImmutableMongod.Builder mongodBuilder() throws MojoExecutionException {
+        DistributionCache cache = getDistributionCache();
+        ImmutableMongod.Builder b = Mongod.builder();
+
+        try {
+            b.persistentBaseDir(cache.persistentDir());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to create the distribution directory " + cache.getDirectory(), e);
+        }
+
+        if (StringUtils.isNotEmpty(downloadPath)) {
+            b.distributionBaseUrl(getDownloadPath());
+            b.downloadPackage(cache.downloadPackage(getProxyFactory(settings)));
+        } else {
+            b.downloadPackage(cache.downloadPackage(DownloadPackage.withDefaults()));
+        }
+
+        return b;
+    }
+
+    /**
+     * Makes sure the binaries used by the given transitions are extracted in the distribution cache.
+     */
+    protected ExtractedFileSet prepareDistribution(Transitions transitions) throws MojoExecutionException {
+        DistributionCache cache = getDistributionCache();
+
+        try {
+            long start = System.nanoTime();
+            ExtractedFileSet extracted = cache.extract(transitions);
+            getLog().info("MongoDB " + version + " available in " + extracted.baseDir() + " after "
+                  + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms" + (cache.isOffline() ? " (offline)" : ""));
+            return extracted;
+        } catch (IOException | RuntimeException e) {
+            throw new MojoExecutionException("Unable to prepare MongoDB " + version + " in " + cache.getDirectory(), e);
+        }
+    }
+
+    private Transition<DistributionBaseUrl> getDownloadPath() {
+        return Start.to(DistributionBaseUrl.class)
+              .initializedWith(DistributionBaseUrl.of(downloadPath));
+    }
+
+    public ImmutableDownloadPackage getProxyFactory(Settings settings) {
+        URI downloadUri = URI.create(downloadPath);
+        final String downloadHost = downloadUri.getHost();
+        final String downloadProto = downloadUri.getScheme();
+        ImmutableDownloadPackage dp = DownloadPackage.withDefaults();
+
+        if (settings.getProxies() != null) {
+            for (org.apache.maven.settings.Proxy proxy : settings.getProxies()) {
+                if (proxy.isActive()
+                      && equalsIgnoreCase(proxy.getProtocol(), downloadProto)
+                      && !contains(proxy.getNonProxyHosts(), downloadHost)) {
+                    dp = dp.withDownloadConfig(DownloadConfig.defaults().withProxyFactory(
+                        ProxyFactory.of(proxy.getHost(), proxy.getPort())));
+                }
+            }
+        }
+
+        return dp;
+    }
+
     /**
      * Saves port to the {@link MavenProject#getProperties()} (with the property
      * name {@code embedmongo.port}) to allow others (plugins, tests, etc) to
@@ -136,6 +381,50 @@ public abstract class AbstractEmbeddedMongoMojo extends AbstractMojo {
         project.getProperties().put("embedmongo.port", String.valueOf(port));
     }
 
+    /**
+     * Releases the random ports reserved by {@link StartMojo}.
+     */
+    protected void releasePortReservations(Map<Object, Object> context) {
+        if (context.remove(StartMojo.PORTS_CONTEXT_PROPERTY_NAME) instanceof List<?> reservations) {
+            for (Object reservation : reservations) {
+                try {
+                    ((NetworkUtils.PortReservation) reservation).close();
+                } catch (IOException e) {
+                    getLog().debug("Unable to release a port reservation", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses an enum parameter case insensitively.
+     *
+     * @throws MojoExecutionException listing the accepted values when {@code value} is none of them.
+     */
+    protected static <E extends Enum<E>> E valueOf(Class<E> type, String parameter, String value) throws MojoExecutionException {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new MojoExecutionException("Invalid " + parameter + " '" + value + "', accepted values are "
+                  + Arrays.stream(type.getEnumConstants()).map(constant -> constant.name().toLowerCase()).collect(Collectors.joining(", ")));
+        }
+    }
+
+    protected static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    protected boolean isSessionScope() {
+        return "session".equalsIgnoreCase(scope);
+    }
+
+    /**
+     * @return identifies the running build, the plugin class loader may outlive it in a daemon.
+     */
+    protected String getSessionKey() {
+        return executionRootDirectory + "@" + (sessionStartTime == null ? 0 : sessionStartTime.getTime());
+    }
+
     public boolean isSkip() {
         return skip;
     }
@@ -0,0 +1,271 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.project.MavenProject;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Copy of a seeded data directory, identified by a fingerprint of everything
+ * that went into the seed: the MongoDB version, the configuration of the
+ * {@code mongo-import} and {@code mongo-scripts} executions of this plugin and
+ * the contents of the files they read. When a snapshot with the same
+ * fingerprint exists, {@link StartMojo} restores it and the seeding goals are
+ * skipped.
+ */
+class DataSnapshot {
+
+    private static final Set<String> SEEDING_GOALS = Set.of("mongo-import", "mongo-scripts");
+
+    /**
+     * Files that belong to the running instance rather than to the data.
+     */
+    private static final Set<String> EXCLUDED = Set.of("mongod.lock", "diagnostic.data");
+
+    private final String fingerprint;
+    private final Path snapshotDirectory;
+    private final Path dataDirectory;
+    private boolean restored;
+
+    DataSnapshot(String fingerprint, Path snapshotDirectory, Path dataDirectory) {
+        this.fingerprint = fingerprint;
+        this.snapshotDirectory = snapshotDirectory;
+        this.dataDirectory = dataDirectory;
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    Path getDataDirectory() {
+        return dataDirectory;
+    }
+
+    Path getSnapshot() {
+        return snapshotDirectory.resolve(fingerprint);
+    }
+
+    boolean isRestored() {
+        return restored;
+    }
+
+    boolean exists() {
+        return Files.isDirectory(getSnapshot());
+    }
+
+    /**
+     * Copies the snapshot into the (empty) data directory, sharing blocks with
+     * the snapshot where the file system supports reflinks. Hard links are not
+     * an option as mongod modifies its data files in place.
+     */
+    void restore() throws IOException {
+        Files.createDirectories(dataDirectory);
+        copy(getSnapshot(), dataDirectory, true);
+        restored = true;
+    }
+
+    /**
+     * Copies the data directory into the snapshot store. The caller is
+     * responsible for the data files being consistent, e.g. by an fsync lock.
+     */
+    void capture() throws IOException {
+        Files.createDirectories(snapshotDirectory);
+        Path temporary = Files.createTempDirectory(snapshotDirectory, fingerprint + ".");
+
+        try {
+            copy(dataDirectory, temporary, false);
+            Files.move(temporary, getSnapshot(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            delete(temporary);
+            if (!exists()) {
+                throw e;
+            }
+            // a concurrent build stored the same snapshot first
+        }
+    }
+
+    static String fingerprint(String version, MavenProject project, File[] additionalInputs) throws IOException {
+        MessageDigest digest = Checksums.sha256();
+        update(digest, version);
+
+        List<Path> inputs = new ArrayList<>();
+        List<Plugin> plugins = project.getModel().getBuild() != null ? project.getModel().getBuild().getPlugins() : List.of();
+        for (Plugin plugin : plugins) {
+            if (!"embedmongo-maven-plugin".equals(plugin.getArtifactId())) {
+                continue;
+            }
+            for (PluginExecution execution : plugin.getExecutions()) {
+                if (execution.getGoals().stream().noneMatch(SEEDING_GOALS::contains)) {
+                    continue;
+                }
+                update(digest, execution.getGoals().toString());
+                for (Object configuration : new Object[] { plugin.getConfiguration(), execution.getConfiguration() }) {
+                    if (configuration != null) {
+                        update(digest, configuration.toString());
+                        inputs.addAll(referencedFiles(configuration.toString(), project.getBasedir()));
+                    }
+                }
+            }
+        }
+
+        if (additionalInputs != null) {
+            for (File input : additionalInputs) {
+                inputs.add(input.toPath());
+            }
+        }
+
+        for (Path input : inputs) {
+            hash(digest, input);
+        }
+
+        return Checksums.hex(digest);
+    }
+
+    /**
+     * @return import files and script directories named by a goal configuration.
+     */
+    private static List<Path> referencedFiles(String configuration, File basedir) throws IOException {
+        List<Path> files = new ArrayList<>();
+
+        try {
+            Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                  .parse(new InputSource(new StringReader(configuration)))
+                  .getDocumentElement();
+
+            for (String name : new String[] { "file", "scriptsDirectory" }) {
+                NodeList nodes = root.getElementsByTagName(name);
+                for (int i = 0; i < nodes.getLength(); i++) {
+                    String value = nodes.item(i).getTextContent().trim();
+                    if (!value.isEmpty()) {
+                        File file = new File(value);
+                        files.add((file.isAbsolute() || basedir == null ? file : new File(basedir, value)).toPath());
+                    }
+                }
+            }
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Unable to read the plugin configuration", e);
+        }
+
+        return files;
+    }
+
+    private static void hash(MessageDigest digest, Path input) throws IOException {
+        update(digest, input.toString());
+
+        if (!Files.exists(input)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(input)) {
+            for (Path path : paths.filter(Files::isRegularFile).sorted().toList()) {
+                update(digest, input.relativize(path).toString());
+                Checksums.update(digest, path);
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static void copy(Path source, Path target, boolean reflink) throws IOException {
+        if (reflink && copyWithReflink(source, target)) {
+            return;
+        }
+
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(source) && EXCLUDED.contains(dir.getFileName().toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!EXCLUDED.contains(file.getFileName().toString())) {
+                    Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return whether {@code cp --reflink=auto} copied the tree.
+     */
+    private static boolean copyWithReflink(Path source, Path target) {
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            return false;
+        }
+
+        try {
+            Process cp = new ProcessBuilder("cp", "-R", "--reflink=auto", source + File.separator + ".", target.toString())
+                  .redirectErrorStream(true)
+                  .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                  .start();
+            return cp.waitFor(10, TimeUnit.MINUTES) && cp.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
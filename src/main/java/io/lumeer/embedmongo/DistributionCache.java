@@ -0,0 +1,113 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.flapdoodle.embed.process.archives.ExtractedFileSet;
+import de.flapdoodle.embed.process.io.directories.PersistentDir;
+import de.flapdoodle.embed.process.net.DownloadToPath;
+import de.flapdoodle.embed.process.transitions.DownloadPackage;
+import de.flapdoodle.embed.process.transitions.ImmutableDownloadPackage;
+import de.flapdoodle.reverse.StateID;
+import de.flapdoodle.reverse.Transition;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.Transitions;
+import de.flapdoodle.reverse.transitions.Start;
+
+/**
+ * Local store of downloaded and extracted MongoDB distributions shared by all
+ * builds on a machine. Archives are kept per download URL (which encodes the
+ * version, OS and architecture) and the extracted binaries per archive content
+ * hash, both by the flapdoodle stores rooted at {@link #getDirectory()}.
+ * Extraction is guarded by a file lock, so concurrent builds do not unpack the
+ * same archive at the same time.
+ */
+class DistributionCache {
+
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * File locks are held per JVM, threads of a parallel reactor build have to
+     * be serialized separately.
+     */
+    private static final ReentrantLock JVM_LOCK = new ReentrantLock();
+
+    private final Path directory;
+    private final boolean offline;
+
+    DistributionCache(Path directory, boolean offline) {
+        this.directory = directory;
+        this.offline = offline;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    boolean isOffline() {
+        return offline;
+    }
+
+    Transition<PersistentDir> persistentDir() throws IOException {
+        Files.createDirectories(directory);
+        return Start.to(PersistentDir.class).initializedWith(PersistentDir.of(directory));
+    }
+
+    /**
+     * @return the given download transition, refusing to touch the network in offline mode.
+     */
+    DownloadPackage downloadPackage(ImmutableDownloadPackage downloadPackage) {
+        if (!offline) {
+            return downloadPackage;
+        }
+
+        DownloadToPath refuse = (url, destination, proxy, userAgent, timeoutConfig, listener) -> {
+            throw new IOException("Offline mode is enabled and " + url + " is not in the distribution cache " + directory
+                  + ", run the mongo-warmup goal while online first");
+        };
+        return downloadPackage.withDownloadToPath(refuse);
+    }
+
+    /**
+     * Downloads and extracts the distribution described by the given mongod or
+     * tool transitions into the cache unless it is already there.
+     *
+     * @return the extracted files, located in the cache.
+     */
+    ExtractedFileSet extract(Transitions transitions) throws IOException {
+        Files.createDirectories(directory);
+
+        JVM_LOCK.lock();
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock();
+             TransitionWalker.ReachedState<ExtractedFileSet> extracted = transitions.walker()
+                   .initState(StateID.of(ExtractedFileSet.class))) {
+            return extracted.current();
+        } finally {
+            JVM_LOCK.unlock();
+        }
+    }
+}
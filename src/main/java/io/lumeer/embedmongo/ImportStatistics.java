@@ -0,0 +1,106 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import org.bson.Document;
+
+/**
+ * Outcome and throughput of a single file imported by {@link MongoImportMojo}.
+ */
+class ImportStatistics {
+
+    private final String file;
+    private final String database;
+    private final String collection;
+    private final long bytes;
+
+    private long documents = -1;
+    private long elapsedMillis;
+    private String failure;
+
+    ImportStatistics(String file, String database, String collection, long bytes) {
+        this.file = file;
+        this.database = database;
+        this.collection = collection;
+        this.bytes = bytes;
+    }
+
+    void succeeded(long documents, long elapsedMillis) {
+        this.documents = documents;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    void failed(String failure, long elapsedMillis) {
+        this.failure = failure;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    String getDatabase() {
+        return database;
+    }
+
+    String getCollection() {
+        return collection;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of imported documents or {@code -1} when unknown.
+     */
+    long getDocuments() {
+        return documents;
+    }
+
+    long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    double getDocumentsPerSecond() {
+        if (documents < 0 || elapsedMillis == 0) {
+            return 0;
+        }
+        return documents * 1000.0 / elapsedMillis;
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    String getFailure() {
+        return failure;
+    }
+
+    Document toDocument() {
+        return new Document("file", file)
+              .append("database", database)
+              .append("collection", collection)
+              .append("documents", documents)
+              .append("bytes", bytes)
+              .append("elapsedMillis", elapsedMillis)
+              .append("documentsPerSecond", getDocumentsPerSecond())
+              .append("failure", failure);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonReader;
+
+import com.mongodb.MongoOperationTimeoutException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports a JSON array or newline delimited JSON file through the driver,
+ * without spawning the {@code mongoimport} binary. Documents are parsed one
+ * at a time and written in batches, so memory use does not depend on the
+ * file size.
+ */
+class JsonImporter {
+
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+    private static final BulkWriteOptions WRITE_OPTIONS = new BulkWriteOptions().ordered(false);
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+    private final MongoDatabase database;
+    private final int batchSize;
+
+    JsonImporter(MongoDatabase database, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.database = database;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Every operation gets the time left until {@code deadlineNanos} as its
+     * timeout, so the import as a whole does not outlive the deadline.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} the import has to finish by.
+     * @return the number of imported documents.
+     * @throws MongoOperationTimeoutException when the deadline passed.
+     */
+    long importFile(File file, String collectionName, boolean drop, boolean upsert, long deadlineNanos) throws IOException {
+        MongoCollection<BsonDocument> collection = database.getCollection(collectionName, BsonDocument.class);
+
+        if (drop) {
+            withRemainingTime(collection, deadlineNanos).drop();
+        }
+
+        try (Reader input = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            JsonReader reader = new JsonReader(input);
+            List<WriteModel<BsonDocument>> batch = new ArrayList<>(batchSize);
+            long count = 0;
+
+            BsonType type = reader.readBsonType();
+            if (type == BsonType.ARRAY) {
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    count += add(collection, batch, CODEC.decode(reader, DECODER_CONTEXT), upsert, deadlineNanos);
+                }
+                reader.readEndArray();
+            } else if (type == BsonType.DOCUMENT) {
+                do {
+                    count += add(collection, batch, CODEC.decode(reader, DECODER_CONTEXT), upsert, deadlineNanos);
+                } while (reader.readBsonType() != BsonType.END_OF_DOCUMENT);
+            } else if (type != BsonType.END_OF_DOCUMENT) {
+                throw new IOException("Expected a JSON array or documents in " + file + " but found " + type);
+            }
+
+            flush(collection, batch, deadlineNanos);
+            return count;
+        }
+    }
+
+    private int add(MongoCollection<BsonDocument> collection, List<WriteModel<BsonDocument>> batch, BsonDocument document, boolean upsert, long deadlineNanos) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Import interrupted");
+        }
+
+        if (upsert && document.containsKey("_id")) {
+            batch.add(new ReplaceOneModel<>(Filters.eq("_id", document.get("_id")), document, UPSERT));
+        } else {
+            batch.add(new InsertOneModel<>(document));
+        }
+
+        if (batch.size() >= batchSize) {
+            flush(collection, batch, deadlineNanos);
+        }
+        return 1;
+    }
+
+    private void flush(MongoCollection<BsonDocument> collection, List<WriteModel<BsonDocument>> batch, long deadlineNanos) {
+        if (!batch.isEmpty()) {
+            withRemainingTime(collection, deadlineNanos).bulkWrite(batch, WRITE_OPTIONS);
+            batch.clear();
+        }
+    }
+
+    private static MongoCollection<BsonDocument> withRemainingTime(MongoCollection<BsonDocument> collection, long deadlineNanos) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        // a timeout of 0 would mean no timeout at all
+        if (remaining <= 0) {
+            throw new MongoOperationTimeoutException("Import deadline exceeded");
+        }
+        return collection.withTimeout(remaining, TimeUnit.MILLISECONDS);
+    }
+}
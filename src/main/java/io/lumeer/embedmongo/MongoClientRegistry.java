@@ -0,0 +1,129 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+/**
+ * Clients shared by all goals of a build, one per server address, kept in the
+ * plugin context. Goals {@link #acquire(String, int) acquire} a lease and close
+ * it when done, the clients themselves live until {@link StopMojo} closes the
+ * registry, so their connection pools are reused across goals.
+ */
+class MongoClientRegistry implements AutoCloseable {
+
+    private final Map<String, Entry> clients = new HashMap<>();
+    private final int maxPoolSize;
+    private final long connectTimeoutMillis;
+    private final long serverSelectionTimeoutMillis;
+
+    MongoClientRegistry(int maxPoolSize, long connectTimeoutMillis, long serverSelectionTimeoutMillis) {
+        this.maxPoolSize = maxPoolSize;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.serverSelectionTimeoutMillis = serverSelectionTimeoutMillis;
+    }
+
+    synchronized Lease acquire(String host, int port) {
+        String address = host + ":" + port;
+        Entry entry = clients.computeIfAbsent(address, key -> new Entry(MongoClients.create(newSettings(key))));
+        entry.references++;
+        return new Lease(address, entry.client);
+    }
+
+    private MongoClientSettings newSettings(String address) {
+        return MongoClientSettings.builder()
+              .applyConnectionString(new ConnectionString("mongodb://" + address))
+              .applyToConnectionPoolSettings(pool -> pool.maxSize(maxPoolSize))
+              .applyToSocketSettings(socket -> socket.connectTimeout((int) connectTimeoutMillis, TimeUnit.MILLISECONDS))
+              .applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(serverSelectionTimeoutMillis, TimeUnit.MILLISECONDS))
+              .build();
+    }
+
+    private synchronized void release(String address) {
+        Entry entry = clients.get(address);
+        if (entry != null && entry.references > 0) {
+            entry.references--;
+        }
+    }
+
+    /**
+     * Closes the client of a server that is going away before the build ends.
+     */
+    synchronized void evict(String host, int port) {
+        Entry entry = clients.remove(host + ":" + port);
+        if (entry != null) {
+            entry.client.close();
+        }
+    }
+
+    /**
+     * @return number of leases not closed yet.
+     */
+    synchronized int getReferences() {
+        return clients.values().stream().mapToInt(entry -> entry.references).sum();
+    }
+
+    @Override
+    public synchronized void close() {
+        clients.values().forEach(entry -> entry.client.close());
+        clients.clear();
+    }
+
+    private static class Entry {
+        private final MongoClient client;
+        private int references;
+
+        private Entry(MongoClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Use of a shared client, closing it only returns the client to the registry.
+     */
+    class Lease implements AutoCloseable {
+        private final String address;
+        private final MongoClient client;
+        private boolean released;
+
+        private Lease(String address, MongoClient client) {
+            this.address = address;
+            this.client = client;
+        }
+
+        MongoClient getClient() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(address);
+            }
+        }
+    }
+}
@@ -20,15 +20,13 @@ package io.lumeer.embedmongo;
 
 import de.flapdoodle.embed.mongo.commands.MongoImportArguments;
 import de.flapdoodle.embed.mongo.commands.ServerAddress;
-import de.flapdoodle.embed.mongo.transitions.ExecutedMongoImportProcess;
+import de.flapdoodle.embed.mongo.transitions.ImmutableMongoImport;
 import de.flapdoodle.embed.mongo.transitions.MongoImport;
-import de.flapdoodle.embed.mongo.transitions.MongoImportProcessArguments;
-import de.flapdoodle.embed.mongo.transitions.Mongod;
 import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.embed.process.transitions.DownloadPackage;
 import de.flapdoodle.reverse.StateID;
 import de.flapdoodle.reverse.TransitionWalker;
 import de.flapdoodle.reverse.Transitions;
-import de.flapdoodle.reverse.transitions.Start;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
@@ -38,11 +36,39 @@ import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
+import org.bson.Document;
+import org.bson.json.JsonWriterSettings;
+
+import com.mongodb.MongoOperationTimeoutException;
+
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Mojo(name="mongo-import", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
 public class MongoImportMojo extends AbstractEmbeddedMongoMojo {
+
+    private static final Pattern IMPORTED_DOCUMENTS = Pattern.compile("(\\d+) document\\(s\\) imported successfully");
+
     @Parameter
     private ImportDataConfig[] imports;
 
@@ -52,8 +78,58 @@ public class MongoImportMojo extends AbstractEmbeddedMongoMojo {
     @Parameter(property = "embedmongo.parallel", defaultValue = "false")
     private Boolean parallel;
 
+    /**
+     * Maximum number of imports running at the same time when {@code parallel}
+     * is enabled. Defaults to the number of available processors.
+     */
+    @Parameter(property = "embedmongo.parallelThreads")
+    private Integer parallelThreads;
+
+    /**
+     * How the files are imported, either {@code process} to run the
+     * {@code mongoimport} binary for each file or {@code driver} to stream
+     * the documents through the Java driver inside the build JVM.
+     */
+    @Parameter(property = "embedmongo.importEngine", defaultValue = "process")
+    private String importEngine;
+
+    /**
+     * Number of documents written in one bulk write when
+     * {@code importEngine} is {@code driver}.
+     */
+    @Parameter(property = "embedmongo.importBatchSize", defaultValue = "1000")
+    private int importBatchSize = 1000;
+
+    /**
+     * JSON file receiving the per-import statistics (documents, bytes,
+     * elapsed time and throughput).
+     */
+    @Parameter(property = "embedmongo.importReportFile", defaultValue = "${project.build.directory}/embedmongo-import-report.json")
+    File importReportFile;
+
+    MongoClientRegistry.Lease clientLease;
+    Path mongoImportExecutable;
+
+    public enum ImportEngine {
+        PROCESS, DRIVER
+    }
+
+    public MongoImportMojo() {
+    }
+
+    MongoImportMojo(ImportDataConfig[] imports, int port, String version, File distributionDirectory, ImportEngine importEngine) {
+        super(port, version, distributionDirectory);
+        this.imports = imports;
+        this.importEngine = importEngine.name().toLowerCase();
+    }
+
     @Override
     public void executeStart() throws MojoExecutionException, MojoFailureException {
+        if (isRestoredFromSnapshot()) {
+            getLog().info("Data restored from snapshot, skipping imports");
+            return;
+        }
+
         try {
             sendImportScript();
         } catch (Exception e) {
@@ -71,47 +147,243 @@ public class MongoImportMojo extends AbstractEmbeddedMongoMojo {
 
         getLog().info("Default import database: " + defaultImportDatabase);
 
-        for(ImportDataConfig importData: imports) {
+        TransitionWalker.ReachedState<RunningMongodProcess> temporaryMongod = null;
+        ServerAddress serverAddress = findRunningServer();
+
+        if (serverAddress == null) {
+            getLog().info("No running mongod found, starting a temporary one for the imports");
+            Transitions mongodTransitions = mongodBuilder().build().transitions(getVersion());
+            prepareDistribution(mongodTransitions);
+            temporaryMongod = mongodTransitions
+                  .walker()
+                  .initState(StateID.of(RunningMongodProcess.class));
+            serverAddress = temporaryMongod.current().getServerAddress();
+        }
+
+        List<ImportStatistics> statistics = Collections.synchronizedList(new ArrayList<>());
+
+        if (getImportEngine() == ImportEngine.DRIVER) {
+            clientLease = acquireClient(serverAddress.getHost(), serverAddress.getPort());
+        } else {
+            mongoImportExecutable = prepareDistribution(mongoImport().transitions(getVersion())).executable();
+        }
 
-            getLog().info("Import " + importData);
+        if (temporaryMongod == null) {
+            resetReusedDatabases(serverAddress.getHost(), serverAddress.getPort(), Arrays.stream(imports).map(this::getDatabase).toList());
+        }
+
+        try {
+            if (Boolean.TRUE.equals(parallel)) {
+                importInParallel(serverAddress, statistics);
+            } else {
+                for(ImportDataConfig importData: imports) {
+                    statistics.add(importData(importData, serverAddress));
+                }
+            }
+        } finally {
+            if (clientLease != null) {
+                clientLease.close();
+                clientLease = null;
+            }
+            if (temporaryMongod != null) {
+                evictClient(serverAddress.getHost(), serverAddress.getPort());
+                temporaryMongod.close();
+            }
+        }
+
+        report(statistics);
+    }
+
+    /**
+     * Logs and writes the statistics.
+     *
+     * @throws MojoExecutionException listing the failed imports if there are any.
+     */
+    void report(List<ImportStatistics> statistics) throws IOException, MojoExecutionException {
+        logSummary(statistics);
+        writeReport(statistics);
+
+        List<String> failures = statistics.stream()
+              .filter(ImportStatistics::isFailed)
+              .map(s -> s.getFile() + " (" + s.getFailure() + ")")
+              .toList();
+        if (!failures.isEmpty()) {
+            throw new MojoExecutionException(failures.size() + " of " + imports.length + " imports failed:\n - " + String.join("\n - ", failures));
+        }
+    }
 
+    /**
+     * Runs the imports on a bounded pool. Imports targeting the same collection
+     * form one group and keep their declared order, the groups run concurrently.
+     */
+    private void importInParallel(ServerAddress serverAddress, List<ImportStatistics> statistics) {
+        Map<String, List<ImportDataConfig>> groups = new LinkedHashMap<>();
+        for (ImportDataConfig importData : imports) {
             verify(importData);
-            String database = importData.getDatabase();
+            groups.computeIfAbsent(getDatabase(importData) + "." + importData.getCollection(), k -> new ArrayList<>())
+                  .add(importData);
+        }
+
+        int threads = parallelThreads != null && parallelThreads > 0 ? parallelThreads : Runtime.getRuntime().availableProcessors();
+        threads = Math.min(threads, groups.size());
+        getLog().info("Importing " + imports.length + " file(s) into " + groups.size() + " collection(s) using " + threads + " thread(s)");
 
-            if (StringUtils.isBlank(database)) {
-                database = defaultImportDatabase;
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (Collection<ImportDataConfig> group : groups.values()) {
+                executor.execute(() -> {
+                    for (ImportDataConfig importData : group) {
+                        statistics.add(importData(importData, serverAddress));
+                    }
+                });
             }
-            MongoImportArguments arguments = MongoImportArguments.builder()
-                  .databaseName(database)
-                  .collectionName(importData.getCollection())
-                  .importFile(importData.getFile())
-                  .isJsonArray(true)
-                  .upsertDocuments(importData.getUpsertOnImport())
-                  .dropCollection(importData.getDropOnImport())
-                  .build();
-
-            MongoImportProcessArguments pa = MongoImportProcessArguments.builder()
-                  .build();
-
-            try (TransitionWalker.ReachedState<RunningMongodProcess> mongoD = Mongod.instance()
-                  .transitions(getVersion())
-                  .addAll(Start.to(ServerAddress.class).initializedWith(ServerAddress.of(InetAddress.getLocalHost(), getPort())))
-                  .walker()
-                  .initState(StateID.of(RunningMongodProcess.class))) {
+        }
+    }
 
-                Transitions mongoImportTransitions = MongoImport.instance()
-                      .transitions(getVersion())
-                      .replace(Start.to(MongoImportArguments.class).initializedWith(arguments))
-                      .addAll(Start.to(ServerAddress.class).initializedWith(mongoD.current().getServerAddress()));
+    /**
+     * Imports one file and gives up after {@link ImportDataConfig#getTimeout()}
+     * milliseconds, killing the {@code mongoimport} process if there is one.
+     */
+    ImportStatistics importData(ImportDataConfig importData, ServerAddress serverAddress) {
+        getLog().info("Import " + importData);
+
+        verify(importData);
+        File file = new File(importData.getFile());
+        ImportStatistics statistics = new ImportStatistics(importData.getFile(), getDatabase(importData), importData.getCollection(), file.length());
+
+        long start = System.nanoTime();
+        try {
+            long documents = clientLease != null
+                  ? importWithDriver(importData, start + TimeUnit.MILLISECONDS.toNanos(importData.getTimeout()))
+                  : importWithProcess(importData, serverAddress);
+            statistics.succeeded(documents, elapsedMillis(start));
+        } catch (MongoOperationTimeoutException | TimeoutException e) {
+            statistics.failed("timed out after " + importData.getTimeout() + " ms", elapsedMillis(start));
+        } catch (InterruptedException | InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+            statistics.failed("interrupted", elapsedMillis(start));
+        } catch (Exception e) {
+            getLog().error("Import of " + importData.getFile() + " failed", e);
+            statistics.failed(String.valueOf(e.getMessage()), elapsedMillis(start));
+        }
 
-                try (TransitionWalker.ReachedState<ExecutedMongoImportProcess> executed = mongoImportTransitions.walker()
-                      .initState(StateID.of(ExecutedMongoImportProcess.class))) {
-                    getLog().info("Import return code: " + executed.current().returnCode());
+        return statistics;
+    }
+
+    /**
+     * @return the number of imported documents.
+     */
+    private long importWithDriver(ImportDataConfig importData, long deadlineNanos) throws IOException {
+        JsonImporter importer = new JsonImporter(clientLease.getClient().getDatabase(getDatabase(importData)), importBatchSize);
+        long count = importer.importFile(new File(importData.getFile()), importData.getCollection(),
+              importData.getDropOnImport(), importData.getUpsertOnImport(), deadlineNanos);
+        getLog().info("Imported " + count + " document(s) from " + importData.getFile());
+        return count;
+    }
+
+    /**
+     * Runs {@code mongoimport} and kills it when it does not finish in time.
+     *
+     * @return the number of imported documents or {@code -1} if it is not known.
+     */
+    private long importWithProcess(ImportDataConfig importData, ServerAddress serverAddress) throws IOException, InterruptedException, TimeoutException {
+        MongoImportArguments arguments = MongoImportArguments.builder()
+              .databaseName(getDatabase(importData))
+              .collectionName(importData.getCollection())
+              .importFile(importData.getFile())
+              .isJsonArray(true)
+              .upsertDocuments(importData.getUpsertOnImport())
+              .dropCollection(importData.getDropOnImport())
+              .build();
+
+        List<String> command = new ArrayList<>();
+        command.add(mongoImportExecutable.toString());
+        command.addAll(arguments.asArguments(serverAddress));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        AtomicLong documents = new AtomicLong(-1);
+        Thread output = Thread.ofVirtual().name("mongoimport-output-" + process.pid()).start(() -> {
+            try (BufferedReader reader = process.inputReader()) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    getLog().info("[mongoimport] " + line);
+                    Matcher matcher = IMPORTED_DOCUMENTS.matcher(line);
+                    if (matcher.find()) {
+                        documents.set(Long.parseLong(matcher.group(1)));
+                    }
                 }
+            } catch (IOException e) {
+                getLog().debug("Output of mongoimport " + process.pid() + " closed", e);
+            }
+        });
+
+        try {
+            if (!process.waitFor(importData.getTimeout(), TimeUnit.MILLISECONDS)) {
+                getLog().warn("Killing mongoimport process " + process.pid() + " of " + importData.getFile());
+                throw new TimeoutException();
             }
+        } finally {
+            if (process.isAlive()) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                process.onExit().join();
+            }
+            output.join();
+        }
+
+        int returnCode = process.exitValue();
+        getLog().info("Import return code: " + returnCode);
+        if (returnCode != 0) {
+            throw new IOException("mongoimport exited with return code " + returnCode);
+        }
+        return documents.get();
+    }
+
+    private ImmutableMongoImport mongoImport() throws IOException {
+        DistributionCache cache = getDistributionCache();
+        return MongoImport.instance()
+              .withPersistentBaseDir(cache.persistentDir())
+              .withDownloadPackage(cache.downloadPackage(DownloadPackage.withDefaults()));
+    }
+
+    private void logSummary(List<ImportStatistics> statistics) {
+        getLog().info(String.format("%-40s %-30s %12s %14s %10s %12s  %s", "File", "Collection", "Documents", "Bytes", "Millis", "Docs/s", "Status"));
+        for (ImportStatistics s : statistics) {
+            getLog().info(String.format("%-40s %-30s %12s %14d %10d %12.0f  %s",
+                  StringUtils.abbreviateMiddle(new File(s.getFile()).getName(), "..", 40),
+                  StringUtils.abbreviateMiddle(s.getDatabase() + "." + s.getCollection(), "..", 30),
+                  s.getDocuments() < 0 ? "?" : String.valueOf(s.getDocuments()),
+                  s.getBytes(), s.getElapsedMillis(), s.getDocumentsPerSecond(),
+                  s.isFailed() ? "FAILED: " + s.getFailure() : "OK"));
+        }
+    }
+
+    private void writeReport(List<ImportStatistics> statistics) throws IOException {
+        if (importReportFile == null) {
+            return;
         }
+
+        Document report = new Document("imports", statistics.stream().map(ImportStatistics::toDocument).toList());
+        Files.createDirectories(importReportFile.getAbsoluteFile().toPath().getParent());
+        Files.writeString(importReportFile.toPath(), report.toJson(JsonWriterSettings.builder().indent(true).build()), StandardCharsets.UTF_8);
+        getLog().info("Import report written to " + importReportFile);
     }
 
+    private ImportEngine getImportEngine() throws MojoExecutionException {
+        return valueOf(ImportEngine.class, "importEngine", importEngine);
+    }
+
+    private String getDatabase(ImportDataConfig importData) {
+        return StringUtils.isBlank(importData.getDatabase()) ? defaultImportDatabase : importData.getDatabase();
+    }
+
+    /**
+     * @return address of the server the goals of this build use or {@code null}
+     * if nothing listens there.
+     */
+    private ServerAddress findRunningServer() throws IOException {
+        ServerAddress address = getServerAddress();
+        return NetworkUtils.isPortOpen(InetAddress.getByName(address.getHost()), address.getPort()) ? address : null;
+    }
 
     private void verify(ImportDataConfig config) {
         Validate.notBlank(config.getFile(), "Import file is required\n\n" +
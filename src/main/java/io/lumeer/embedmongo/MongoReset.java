@@ -0,0 +1,242 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Returns a running server to a clean state without restarting it, used by
+ * the {@code mongo-reset} goal and usable from tests, e.g. between test
+ * classes:
+ * <pre>
+ * MongoReset reset = new MongoReset(client);
+ * reset.captureBaseline(); // optional, after seeding
+ * ...
+ * reset.reset(MongoReset.Mode.TRUNCATE);
+ * </pre>
+ * Databases and collections are processed concurrently. The {@code admin},
+ * {@code config} and {@code local} databases and {@code system.*}
+ * collections are never touched.
+ */
+public class MongoReset {
+
+    public enum Mode {
+        /**
+         * Drops the databases, indexes included.
+         */
+        DROP,
+        /**
+         * Deletes the documents of every collection and keeps the
+         * collections with their indexes, faster than recreating them.
+         * Capped collections, which may not support deletes, are dropped and
+         * created again with the same options and indexes.
+         */
+        TRUNCATE
+    }
+
+    private static final Set<String> SYSTEM_DATABASES = Set.of("admin", "config", "local");
+    private static final InsertManyOptions INSERT_OPTIONS = new InsertManyOptions().ordered(false);
+
+    private final MongoClient client;
+    private final Collection<String> databases;
+    private Map<String, List<BsonDocument>> baseline;
+
+    /**
+     * Resets all databases but the system ones.
+     */
+    public MongoReset(MongoClient client) {
+        this(client, null);
+    }
+
+    /**
+     * Resets the given databases, all but the system ones if {@code null} or empty.
+     */
+    public MongoReset(MongoClient client, Collection<String> databases) {
+        this.client = client;
+        this.databases = databases == null || databases.isEmpty() ? null : List.copyOf(databases);
+    }
+
+    /**
+     * @return a reset of the given databases, all but the system ones if
+     *         {@code null} or empty, with the part of the baseline captured
+     *         for them.
+     * @throws IllegalArgumentException when the baseline was not captured for all of them.
+     */
+    public MongoReset forDatabases(Collection<String> databases) {
+        MongoReset reset = new MongoReset(client, databases);
+        boolean covered = this.databases == null || reset.databases != null && this.databases.containsAll(reset.databases);
+        if (!covered) {
+            throw new IllegalArgumentException("The baseline was captured for the databases " + this.databases
+                  + ", not for " + (reset.databases == null ? "all of them" : reset.databases));
+        }
+
+        if (baseline != null) {
+            reset.baseline = new ConcurrentHashMap<>();
+            baseline.forEach((namespace, documents) -> {
+                if (reset.databases == null || reset.databases.contains(namespace.substring(0, namespace.indexOf('.')))) {
+                    reset.baseline.put(namespace, documents);
+                }
+            });
+        }
+        return reset;
+    }
+
+    /**
+     * Keeps the documents currently stored in memory, every later
+     * {@link #reset(Mode)} inserts them again.
+     *
+     * @return the number of captured documents.
+     */
+    public long captureBaseline() {
+        Map<String, List<BsonDocument>> documents = new ConcurrentHashMap<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (String database : getDatabases()) {
+            for (Document collection : getCollections(client.getDatabase(database))) {
+                String namespace = database + "." + collection.getString("name");
+                tasks.add(() -> documents.put(namespace, getCollection(namespace).find().into(new ArrayList<>())));
+            }
+        }
+        inParallel(tasks);
+
+        baseline = documents;
+        return documents.values().stream().mapToLong(List::size).sum();
+    }
+
+    public boolean hasBaseline() {
+        return baseline != null;
+    }
+
+    /**
+     * Removes all data and restores the captured baseline, if any.
+     */
+    public void reset(Mode mode) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (String database : getDatabases()) {
+            if (mode == Mode.DROP) {
+                tasks.add(() -> client.getDatabase(database).drop());
+            } else {
+                for (Document collection : getCollections(client.getDatabase(database))) {
+                    tasks.add(() -> truncate(client.getDatabase(database), collection));
+                }
+            }
+        }
+        inParallel(tasks);
+
+        if (baseline != null) {
+            inParallel(baseline.entrySet().stream()
+                  .filter(entry -> !entry.getValue().isEmpty())
+                  .<Runnable>map(entry -> () -> getCollection(entry.getKey()).insertMany(entry.getValue(), INSERT_OPTIONS))
+                  .toList());
+        }
+    }
+
+    private List<String> getDatabases() {
+        if (databases != null) {
+            return new ArrayList<>(databases);
+        }
+        return client.listDatabaseNames().into(new ArrayList<>()).stream()
+              .filter(name -> !SYSTEM_DATABASES.contains(name))
+              .toList();
+    }
+
+    /**
+     * @return the {@code listCollections} entries of the database, without views and system collections.
+     */
+    private static List<Document> getCollections(MongoDatabase database) {
+        List<Document> collections = new ArrayList<>();
+        for (Document collection : database.listCollections()) {
+            if (!"view".equals(collection.getString("type")) && !collection.getString("name").startsWith("system.")) {
+                collections.add(collection);
+            }
+        }
+        return collections;
+    }
+
+    private static void truncate(MongoDatabase database, Document collection) {
+        String name = collection.getString("name");
+        Document options = collection.get("options", Document.class);
+        if (options == null || !options.getBoolean("capped", false)) {
+            database.getCollection(name, BsonDocument.class).deleteMany(new BsonDocument());
+            return;
+        }
+
+        List<Document> indexes = new ArrayList<>();
+        for (Document index : database.getCollection(name).listIndexes()) {
+            if (!"_id_".equals(index.getString("name"))) {
+                index.remove("v");
+                index.remove("ns");
+                indexes.add(index);
+            }
+        }
+
+        database.getCollection(name).drop();
+        Document create = new Document("create", name);
+        create.putAll(options);
+        database.runCommand(create);
+        if (!indexes.isEmpty()) {
+            database.runCommand(new Document("createIndexes", name).append("indexes", indexes));
+        }
+    }
+
+    /**
+     * @param namespace the database and collection name separated by the first dot.
+     */
+    private MongoCollection<BsonDocument> getCollection(String namespace) {
+        int dot = namespace.indexOf('.');
+        return client.getDatabase(namespace.substring(0, dot)).getCollection(namespace.substring(dot + 1), BsonDocument.class);
+    }
+
+    private static void inParallel(List<Runnable> tasks) {
+        List<Future<?>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            tasks.forEach(task -> futures.add(executor.submit(task)));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while resetting the databases", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+
+import com.mongodb.MongoException;
+
+/**
+ * When invoked, this goal returns the running mongod to a clean state
+ * without restarting it, see {@link MongoReset}. With {@code baseline}
+ * {@code capture} it instead records the current documents, e.g. after the
+ * seeding goals, and with {@code restore} it inserts them again after the
+ * reset.
+ */
+@Mojo(name = "mongo-reset", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
+public class MongoResetMojo extends AbstractEmbeddedMongoMojo {
+
+    /**
+     * {@code drop} to drop the databases or {@code truncate} to delete the
+     * documents and keep the collections and their indexes.
+     */
+    @Parameter(property = "embedmongo.resetMode", defaultValue = "drop")
+    private String resetMode = "drop";
+
+    /**
+     * Databases to reset, all but {@code admin}, {@code config} and
+     * {@code local} by default.
+     */
+    @Parameter
+    private List<String> databases;
+
+    /**
+     * {@code none}, {@code capture} to record the current documents in
+     * memory for the following executions, or {@code restore} to insert the
+     * recorded documents after the reset.
+     */
+    @Parameter(property = "embedmongo.baseline", defaultValue = "none")
+    private String baseline = "none";
+
+    enum Baseline {
+        NONE, CAPTURE, RESTORE
+    }
+
+    @Override
+    public void executeStart() throws MojoExecutionException, MojoFailureException {
+        MongoReset.Mode mode = valueOf(MongoReset.Mode.class, "resetMode", resetMode);
+        Baseline action = valueOf(Baseline.class, "baseline", baseline);
+
+        ServerAddress address = getServerAddress();
+        try (MongoClientRegistry.Lease lease = acquireClient(address.getHost(), address.getPort())) {
+            long start = System.nanoTime();
+
+            MongoReset reset = new MongoReset(lease.getClient(), databases);
+            if (action == Baseline.RESTORE) {
+                if (getPluginContext().get(StartMojo.BASELINE_CONTEXT_PROPERTY_NAME) instanceof MongoReset captured) {
+                    try {
+                        reset = captured.forDatabases(databases);
+                    } catch (IllegalArgumentException e) {
+                        throw new MojoExecutionException(e.getMessage() + ", use the same databases to capture and restore", e);
+                    }
+                } else {
+                    getLog().warn("No baseline captured, run mongo-reset with baseline capture first");
+                }
+            }
+
+            if (action == Baseline.CAPTURE) {
+                long documents = reset.captureBaseline();
+                getPluginContext().put(StartMojo.BASELINE_CONTEXT_PROPERTY_NAME, reset);
+                getLog().info("Captured a baseline of " + documents + " document(s) in " + elapsedMillis(start) + " ms");
+            } else {
+                reset.reset(mode);
+                getLog().info("Reset the databases by " + mode.name().toLowerCase()
+                      + (reset.hasBaseline() ? " and restored the baseline" : "") + " in " + elapsedMillis(start) + " ms");
+            }
+        } catch (MongoException e) {
+            throw new MojoExecutionException("Unable to reset the databases", e);
+        }
+    }
+}
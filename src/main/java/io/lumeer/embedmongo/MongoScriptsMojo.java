@@ -19,10 +19,24 @@
 package io.lumeer.embedmongo;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -34,10 +48,9 @@ import org.bson.BsonString;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+
 import com.mongodb.MongoException;
-import com.mongodb.ServerAddress;
-import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 
 /**
@@ -45,7 +58,8 @@ import com.mongodb.client.MongoDatabase;
  * instructions to add data.
  *
  * You should use the same javascript syntax that you would use in the mongo
- * client.
+ * client, limited to the statements supported by {@link ScriptCommands}, or
+ * extended JSON command documents.
  *
  */
 @Mojo(name = "mongo-scripts", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
@@ -71,6 +85,41 @@ public class MongoScriptsMojo extends AbstractEmbeddedMongoMojo {
     @Parameter(property = "databaseName", required = true)
     private String databaseName;
 
+    /**
+     * How the scripts are executed, either {@code driver} to translate their
+     * statements into commands sent by the Java driver, or {@code eval} to
+     * send them to the server side {@code eval} command, which only exists
+     * before MongoDB 4.2.
+     */
+    @Parameter(property = "scriptEngine", defaultValue = "driver")
+    private String scriptEngine = "driver";
+
+    /**
+     * Whether the subdirectories of {@link #scriptsDirectory} are executed
+     * concurrently. Files directly in the directory always run first.
+     */
+    @Parameter(property = "embedmongo.scripts.parallel", defaultValue = "false")
+    private Boolean parallel;
+
+    /**
+     * Maximum number of subdirectories executed at the same time when
+     * {@code parallel} is enabled. Defaults to the number of processors.
+     */
+    @Parameter(property = "embedmongo.scripts.parallelThreads")
+    private Integer parallelThreads;
+
+    /**
+     * Collection recording the applied scripts and their checksums, scripts
+     * found there are skipped. Not set by default, all scripts are executed
+     * every time and nothing is written besides what they do.
+     */
+    @Parameter(property = "embedmongo.scripts.changelog")
+    private String changelogCollection;
+
+    public enum ScriptEngine {
+        DRIVER, EVAL
+    }
+
     public MongoScriptsMojo() {
     }
 
@@ -83,71 +132,262 @@ public class MongoScriptsMojo extends AbstractEmbeddedMongoMojo {
 
     @Override
     public void executeStart() throws MojoExecutionException, MojoFailureException {
-        MongoDatabase db = connectToMongoAndGetDatabase();
+        if (isRestoredFromSnapshot()) {
+            getLog().info("Data restored from snapshot, skipping scripts");
+            return;
+        }
+
+        if (databaseName == null || databaseName.trim().length() == 0) {
+            throw new MojoExecutionException("Database name is missing");
+        }
+
+        ServerAddress address = getServerAddress();
+        resetReusedDatabases(address.getHost(), address.getPort(), List.of(databaseName));
+
+        try (MongoClientRegistry.Lease lease = acquireClient(address.getHost(), address.getPort())) {
+            getLog().info("Connected to MongoDB");
+            executeScripts(lease.getClient().getDatabase(databaseName));
+        }
+    }
 
+    private void executeScripts(MongoDatabase db) throws MojoExecutionException {
         if (scriptsDirectory.isDirectory()) {
-            Scanner scanner = null;
-            StringBuilder instructions = new StringBuilder();
-            File[] files = scriptsDirectory.listFiles();
+            Map<String, List<Path>> groups = getScriptGroups();
+            int count = groups.values().stream().mapToInt(List::size).sum();
+            getLog().info("Folder " + scriptsDirectory.getAbsolutePath() + " contains " + count + " file(s):");
+
+            Charset charset = getScriptCharset();
+            ScriptChangelog changelog = changelogCollection == null || changelogCollection.isBlank()
+                  ? null : new ScriptChangelog(db.getCollection(changelogCollection));
 
-            if (files == null) {
-                getLog().info("Can't read scripts directory: " + scriptsDirectory.getAbsolutePath());
+            // top level scripts prepare the database for all the groups
+            List<Path> common = groups.remove("");
+            if (common != null) {
+                executeGroup(db, common, charset, changelog);
+            }
 
+            if (Boolean.TRUE.equals(parallel) && groups.size() > 1) {
+                executeInParallel(db, groups, charset, changelog);
             } else {
-                getLog().info("Folder " + scriptsDirectory.getAbsolutePath() + " contains " + files.length + " file(s):");
-
-                for (File file : files) {
-                    if (file.isFile()) {
-                        try {
-                            if (scriptCharsetEncoding == null) {
-                                scanner = new Scanner(file);
-                            } else {
-                                // no need to check encoding, the constructor throws
-                                // an IllegalArgumentException if the charset cannot be determined
-                                // from the provided value.
-                                scanner = new Scanner(file, scriptCharsetEncoding);
-                            }
-
-                            while (scanner.hasNextLine()) {
-                                instructions.append(scanner.nextLine()).append("\n");
-                            }
-                        } catch (FileNotFoundException e) {
-                            throw new MojoExecutionException("Unable to find file with name '" + file.getName() + "'", e);
-                        } catch (IllegalArgumentException e) {
-                            throw new MojoExecutionException("Unable to determine charset encoding for provided charset '" + scriptCharsetEncoding + "'", e);
-                        } finally {
-                            if (scanner != null) {
-                                scanner.close();
-                            }
-                        }
-                        Document result;
-                        try {
-                            Bson command = new BsonDocument("eval", new BsonString("function() {" + instructions.toString() + "}"));
-                            result = db.runCommand(command);
-                        } catch (MongoException e) {
-                            throw new MojoExecutionException("Unable to execute file with name '" + file.getName() + "'", e);
-                        }
-                        if (result.getInteger("ok") != 1) {
-                            getLog().error("- file " + file.getName() + " parsed with error: " + result.getString("errmsg"));
-                            throw new MojoExecutionException("Error while executing instructions from file '" + file.getName() + "': " + result.getString("errmsg"));
-                        }
-                        getLog().info("- file " + file.getName() + " parsed successfully");
-                    }
+                for (List<Path> group : groups.values()) {
+                    executeGroup(db, group, charset, changelog);
                 }
             }
             getLog().info("Data initialized with success");
         }
     }
 
-    MongoDatabase connectToMongoAndGetDatabase() throws MojoExecutionException {
-        if (databaseName == null || databaseName.trim().length() == 0) {
-            throw new MojoExecutionException("Database name is missing");
+    /**
+     * Runs the subdirectories on a bounded pool, the scripts of one
+     * subdirectory keep their order.
+     */
+    private void executeInParallel(MongoDatabase db, Map<String, List<Path>> groups, Charset charset, ScriptChangelog changelog) throws MojoExecutionException {
+        int threads = parallelThreads != null && parallelThreads > 0 ? parallelThreads : Runtime.getRuntime().availableProcessors();
+        threads = Math.min(threads, groups.size());
+        getLog().info("Executing " + groups.size() + " script group(s) using " + threads + " thread(s)");
+
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (Map.Entry<String, List<Path>> group : groups.entrySet()) {
+                results.put(group.getKey(), executor.submit(() -> {
+                    executeGroup(db, group.getValue(), charset, changelog);
+                    return null;
+                }));
+            }
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+            try {
+                result.getValue().get();
+            } catch (ExecutionException e) {
+                failures.add(result.getKey() + " (" + e.getCause().getMessage() + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("Interrupted while executing scripts", e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new MojoExecutionException(failures.size() + " of " + groups.size() + " script groups failed:\n - " + String.join("\n - ", failures));
+        }
+    }
+
+    private void executeGroup(MongoDatabase db, List<Path> scripts, Charset charset, ScriptChangelog changelog) throws MojoExecutionException {
+        for (Path script : scripts) {
+            File file = script.toFile();
+            String name = scriptsDirectory.toPath().relativize(script).toString().replace(File.separatorChar, '/');
+
+            String checksum = null;
+            if (changelog != null) {
+                try {
+                    checksum = Checksums.sha256(script);
+                    if (changelog.isApplied(name, checksum)) {
+                        getLog().info("- file " + name + " already applied, skipping");
+                        continue;
+                    }
+                } catch (IOException e) {
+                    throw new MojoExecutionException("Unable to read file with name '" + name + "'", e);
+                } catch (IllegalStateException | MongoException e) {
+                    throw new MojoExecutionException(e.getMessage(), e);
+                }
+            }
+
+            long start = System.nanoTime();
+            if (getScriptEngine() == ScriptEngine.EVAL) {
+                eval(db, file, charset);
+                getLog().info("- file " + name + " parsed successfully in " + elapsedMillis(start) + " ms");
+            } else {
+                int commands = execute(db, file, charset);
+                getLog().info("- file " + name + " executed successfully, " + commands + " command(s) in " + elapsedMillis(start) + " ms");
+            }
+
+            if (changelog != null) {
+                changelog.applied(name, checksum, elapsedMillis(start));
+            }
+        }
+    }
+
+    /**
+     * Groups the files by the top level subdirectory they are in, files
+     * directly in {@link #scriptsDirectory} form the group with an empty name.
+     * Hidden files and directories, e.g. editor backups or {@code .git}, are
+     * skipped with a warning. Each group is sorted by
+     * {@link #compareScriptNames(String, String)}.
+     */
+    private Map<String, List<Path>> getScriptGroups() throws MojoExecutionException {
+        Path root = scriptsDirectory.toPath();
+        Map<String, List<Path>> groups = new TreeMap<>(MongoScriptsMojo::compareScriptNames);
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    if (!directory.equals(root) && isHidden(directory)) {
+                        getLog().warn("Skipping hidden directory " + root.relativize(directory));
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    Path relative = root.relativize(file);
+                    if (isHidden(file)) {
+                        getLog().warn("Skipping hidden file " + relative);
+                    } else if (attributes.isRegularFile()) {
+                        String group = relative.getNameCount() > 1 ? relative.getName(0).toString() : "";
+                        groups.computeIfAbsent(group, k -> new ArrayList<>()).add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to list scripts directory " + scriptsDirectory.getAbsolutePath(), e);
+        }
+
+        for (List<Path> group : groups.values()) {
+            group.sort((a, b) -> compareScriptNames(root.relativize(a).toString(), root.relativize(b).toString()));
+        }
+        return groups;
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Orders names lexically, except that runs of digits compare by their
+     * numeric value, so that {@code V2__users.js} comes before
+     * {@code V10__orders.js}.
+     */
+    static int compareScriptNames(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                int endA = i;
+                while (endA < a.length() && Character.isDigit(a.charAt(endA))) {
+                    endA++;
+                }
+                int endB = j;
+                while (endB < b.length() && Character.isDigit(b.charAt(endB))) {
+                    endB++;
+                }
+                int result = new BigInteger(a.substring(i, endA)).compareTo(new BigInteger(b.substring(j, endB)));
+                if (result != 0) {
+                    return result;
+                }
+                i = endA;
+                j = endB;
+            } else {
+                if (ca != cb) {
+                    return Character.compare(ca, cb);
+                }
+                i++;
+                j++;
+            }
         }
+        int result = Integer.compare(a.length() - i, b.length() - j);
+        return result != 0 ? result : a.compareTo(b);
+    }
+
+    private int execute(MongoDatabase db, File file, Charset charset) throws MojoExecutionException {
+        ScriptCommands commands = new ScriptCommands(db);
+        int count = 0;
 
-        ServerAddress addr = new ServerAddress(InetAddress.getLoopbackAddress(), getPort());
+        try (Reader reader = Files.newBufferedReader(file.toPath(), charset)) {
+            ScriptSplitter splitter = new ScriptSplitter(reader);
+            String statement;
+            while ((statement = splitter.next()) != null) {
+                try {
+                    count += commands.execute(statement);
+                } catch (MongoException | IllegalArgumentException | IllegalStateException e) {
+                    getLog().error("- file " + file.getName() + " failed: " + e.getMessage());
+                    throw new MojoExecutionException("Error while executing instructions from file '" + file.getName() + "': " + e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to read file with name '" + file.getName() + "'", e);
+        }
+        return count;
+    }
+
+    private void eval(MongoDatabase db, File file, Charset charset) throws MojoExecutionException {
+        String instructions;
+        try {
+            instructions = Files.readString(file.toPath(), charset);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to read file with name '" + file.getName() + "'", e);
+        }
+
+        Document result;
+        try {
+            Bson command = new BsonDocument("eval", new BsonString("function() {" + instructions + "}"));
+            result = db.runCommand(command);
+        } catch (MongoException e) {
+            throw new MojoExecutionException("Unable to execute file with name '" + file.getName() + "'", e);
+        }
+        if (result.getInteger("ok") != 1) {
+            getLog().error("- file " + file.getName() + " parsed with error: " + result.getString("errmsg"));
+            throw new MojoExecutionException("Error while executing instructions from file '" + file.getName() + "': " + result.getString("errmsg"));
+        }
+    }
+
+    private Charset getScriptCharset() throws MojoExecutionException {
+        if (scriptCharsetEncoding == null) {
+            return Charset.defaultCharset();
+        }
+        try {
+            return Charset.forName(scriptCharsetEncoding);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Unable to determine charset encoding for provided charset '" + scriptCharsetEncoding + "'", e);
+        }
+    }
 
-        MongoClient mongoClient = MongoClients.create("mongodb://" + addr);
-        getLog().info("Connected to MongoDB");
-        return mongoClient.getDatabase(databaseName);
+    private ScriptEngine getScriptEngine() throws MojoExecutionException {
+        return valueOf(ScriptEngine.class, "scriptEngine", scriptEngine);
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A mongod left running by {@code reuse=true} for the following builds,
+ * described by a state file in its directory. Builds hold a shared lock on
+ * the {@code in-use} file while they use it, and a watchdog process started
+ * with it stops it after it has been idle for the configured time.
+ * <p>
+ * Only depends on the JDK, the watchdog runs it with the plugin jar alone.
+ */
+class MongodDaemon {
+
+    static final String PID = "pid";
+    static final String PORT = "port";
+    static final String VERSION = "version";
+    static final String DATA_DIRECTORY = "dataDirectory";
+    static final String OPTIONS = "options";
+    static final String EXECUTABLE = "executable";
+
+    private static final long STOP_TIMEOUT_MILLIS = 30000;
+    private static final long MAX_WATCHDOG_INTERVAL_MILLIS = 60000;
+    private static final Path SETSID = Paths.get("/usr/bin/setsid");
+
+    private final Path directory;
+    private final Path stateFile;
+
+    MongodDaemon(Path directory) {
+        this.directory = directory;
+        this.stateFile = directory.resolve("mongod.properties");
+    }
+
+    Path getDataDirectory() {
+        return directory.resolve("data");
+    }
+
+    Path getLogFile() {
+        return directory.resolve("mongod.log");
+    }
+
+    /**
+     * Locks the state file against other builds and the watchdog, blocking
+     * until they release it.
+     */
+    Closeable lock() throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve("mongod.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            return () -> {
+                lock.release();
+                channel.close();
+            };
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the recorded state, {@code null} if no daemon was started.
+     */
+    Properties readState() throws IOException {
+        if (!Files.isRegularFile(stateFile)) {
+            return null;
+        }
+        Properties state = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile)) {
+            state.load(reader);
+        }
+        return state;
+    }
+
+    void writeState(Properties state) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(stateFile)) {
+            state.store(writer, "mongod kept running by embedmongo");
+        }
+    }
+
+    void deleteState() throws IOException {
+        Files.deleteIfExists(stateFile);
+    }
+
+    /**
+     * @return the running mongod of the recorded state. The state file
+     *         outlives reboots, so a process with the recorded pid is only
+     *         taken for it when it runs the recorded executable with the
+     *         recorded port and data directory, otherwise the pid was reused.
+     */
+    static Optional<ProcessHandle> findProcess(Properties state) {
+        try {
+            return ProcessHandle.of(Long.parseLong(state.getProperty(PID)))
+                  .filter(ProcessHandle::isAlive)
+                  .filter(process -> isDaemon(process.info(), state));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static boolean isDaemon(ProcessHandle.Info info, Properties state) {
+        String executable = state.getProperty(EXECUTABLE);
+        if (executable == null || !info.command().map(command -> Paths.get(command).equals(Paths.get(executable))).orElse(false)) {
+            return false;
+        }
+
+        String[] arguments = info.arguments().orElse(new String[0]);
+        return hasArgument(arguments, "--port", state.getProperty(PORT))
+              && hasArgument(arguments, "--dbpath", state.getProperty(DATA_DIRECTORY));
+    }
+
+    private static boolean hasArgument(String[] arguments, String name, String value) {
+        for (int i = 0; i < arguments.length - 1; i++) {
+            if (name.equals(arguments[i]) && arguments[i + 1].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the daemon as used by this build until the returned lease is
+     * closed, or the JVM exits.
+     */
+    Closeable use() throws IOException {
+        touch();
+        FileChannel channel = FileChannel.open(directory.resolve("in-use"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock(0, Long.MAX_VALUE, true);
+        } catch (OverlappingFileLockException e) {
+            // another module of this build uses it too
+        }
+
+        final FileLock used = lock;
+        return () -> {
+            touch();
+            if (used != null) {
+                used.release();
+            }
+            channel.close();
+        };
+    }
+
+    private void touch() throws IOException {
+        if (Files.exists(stateFile)) {
+            Files.setLastModifiedTime(stateFile, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return whether a build holds a {@link #use()} lease.
+     */
+    private boolean isInUse() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("in-use"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        }
+    }
+
+    /**
+     * Starts mongod detached from this JVM, in a new session where
+     * {@code setsid} exists so that interrupting the build does not stop it.
+     */
+    Process launch(List<String> command) throws IOException {
+        Files.createDirectories(getDataDirectory());
+        return detached(command, getLogFile()).start();
+    }
+
+    /**
+     * Starts the process that stops the daemon once it is idle.
+     */
+    void startWatchdog(long pid, long idleTimeoutMillis) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx16m");
+        command.add("-cp");
+        try {
+            command.add(Paths.get(MongodDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString());
+        } catch (URISyntaxException e) {
+            throw new IOException("Unable to locate the plugin jar", e);
+        }
+        command.add(MongodDaemon.class.getName());
+        command.add(directory.toString());
+        command.add(String.valueOf(pid));
+        command.add(String.valueOf(idleTimeoutMillis));
+
+        detached(command, directory.resolve("watchdog.log")).start();
+    }
+
+    private static ProcessBuilder detached(List<String> command, Path output) {
+        List<String> detached = new ArrayList<>();
+        if (Files.isExecutable(SETSID)) {
+            detached.add(SETSID.toString());
+        }
+        detached.addAll(command);
+
+        return new ProcessBuilder(detached)
+              .redirectErrorStream(true)
+              .redirectOutput(output.toFile());
+    }
+
+    /**
+     * Asks mongod to shut down cleanly and kills it if it does not within
+     * {@value #STOP_TIMEOUT_MILLIS} ms.
+     */
+    static void stop(ProcessHandle process) {
+        process.destroy();
+        try {
+            process.onExit().get(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            process.destroyForcibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * The watchdog, arguments are the daemon directory, the pid of mongod
+     * and the idle timeout in milliseconds.
+     */
+    public static void main(String[] args) throws Exception {
+        MongodDaemon daemon = new MongodDaemon(Paths.get(args[0]));
+        long pid = Long.parseLong(args[1]);
+        long idleTimeoutMillis = Long.parseLong(args[2]);
+
+        while (true) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(MAX_WATCHDOG_INTERVAL_MILLIS, idleTimeoutMillis / 4 + 1));
+
+            try (Closeable lock = daemon.lock()) {
+                Properties state = daemon.readState();
+                if (state == null || !String.valueOf(pid).equals(state.getProperty(PID))) {
+                    // stopped or replaced by a build
+                    return;
+                }
+
+                Optional<ProcessHandle> process = findProcess(state);
+                if (process.isEmpty()) {
+                    System.out.println("mongod " + pid + " is gone, forgetting its state");
+                    daemon.deleteState();
+                    return;
+                }
+
+                if (daemon.isInUse()) {
+                    daemon.touch();
+                } else if (System.currentTimeMillis() - Files.getLastModifiedTime(daemon.stateFile).toMillis() > idleTimeoutMillis) {
+                    System.out.println("Stopping mongod " + pid + ", idle for more than " + idleTimeoutMillis + " ms");
+                    stop(process.get());
+                    daemon.deleteState();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+/**
+ * Lifecycle of the mongod managed by {@link StartMojo}, published in the
+ * plugin context under {@link StartMojo#MONGOD_STATE_CONTEXT_PROPERTY_NAME},
+ * see {@link StartMojo#instanceKey(String, int)} for the other instances.
+ */
+public enum MongodState {
+    STARTING, READY, CRASHED, STOPPED
+}
@@ -0,0 +1,154 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.StateID;
+import de.flapdoodle.reverse.TransitionWalker;
+
+/**
+ * Runs mongod on the thread started by {@link StartMojo} and reacts as soon
+ * as the process exits, instead of polling it. An exit that was not requested
+ * by {@link StopMojo} is published as {@link MongodState#CRASHED} and mongod is
+ * started again when restarts are enabled.
+ */
+class MongodSupervisor implements Runnable {
+
+    private final Mongod mongod;
+    private final Version version;
+    private final Map<Object, Object> pluginContext;
+    private final Log log;
+    private final int maxRestarts;
+    private final String name;
+    private final String mongodKey;
+    private final String stateKey;
+    private final CompletableFuture<RunningMongodProcess> started = new CompletableFuture<>();
+
+    MongodSupervisor(Mongod mongod, Version version, Map<Object, Object> pluginContext, Log log, int maxRestarts, String name, int instance) {
+        this.mongod = mongod;
+        this.version = version;
+        this.pluginContext = pluginContext;
+        this.log = log;
+        this.maxRestarts = maxRestarts;
+        this.name = name;
+        this.mongodKey = StartMojo.instanceKey(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME, instance);
+        this.stateKey = StartMojo.instanceKey(StartMojo.MONGOD_STATE_CONTEXT_PROPERTY_NAME, instance);
+    }
+
+    /**
+     * @return completes once the first mongod process is running.
+     */
+    CompletableFuture<RunningMongodProcess> started() {
+        return started;
+    }
+
+    @Override
+    public void run() {
+        int restarts = 0;
+
+        while (true) {
+            pluginContext.put(stateKey, MongodState.STARTING);
+
+            try (TransitionWalker.ReachedState<RunningMongodProcess> running = mongod.transitions(version).walker()
+                  .initState(StateID.of(RunningMongodProcess.class))) {
+
+                pluginContext.put(mongodKey, running);
+                if (!started.complete(running.current())) {
+                    pluginContext.put(stateKey, MongodState.READY);
+                    log.info(name + " restarted.");
+                }
+
+                awaitExit(running.current());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!started.completeExceptionally(e)) {
+                    log.error("Unable to start " + name + ".", e);
+                }
+                pluginContext.put(stateKey, MongodState.CRASHED);
+                return;
+            }
+
+            if (pluginContext.get(stateKey) == MongodState.STOPPED) {
+                return;
+            }
+
+            pluginContext.put(stateKey, MongodState.CRASHED);
+            if (restarts >= maxRestarts) {
+                log.error(name + " exited unexpectedly.");
+                return;
+            }
+
+            restarts++;
+            log.warn(name + " exited unexpectedly, restarting it (" + restarts + "/" + maxRestarts + ").");
+        }
+    }
+
+    private void awaitExit(RunningMongodProcess process) throws InterruptedException {
+        Optional<ProcessHandle> handle = findProcess(process.getServerAddress().getPort());
+
+        if (handle.isPresent()) {
+            try {
+                handle.get().onExit().get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        } else {
+            log.debug("Unable to find the mongod process handle, falling back to polling.");
+            while (process.isAlive()) {
+                TimeUnit.SECONDS.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * @return the mongod child process of this JVM listening on the port.
+     */
+    static Optional<ProcessHandle> findProcess(int port) {
+        return ProcessHandle.current().descendants()
+              .filter(process -> process.info().arguments()
+                    .map(arguments -> isMongod(process, arguments, port))
+                    .orElse(false))
+              .findFirst();
+    }
+
+    private static boolean isMongod(ProcessHandle process, String[] arguments, int port) {
+        if (!process.info().command().map(command -> command.contains("mongod")).orElse(false)) {
+            return false;
+        }
+
+        for (int i = 0; i < arguments.length - 1; i++) {
+            if ("--port".equals(arguments[i]) && String.valueOf(port).equals(arguments[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
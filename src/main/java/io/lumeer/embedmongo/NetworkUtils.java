@@ -20,12 +20,25 @@ package io.lumeer.embedmongo;
 
 import de.flapdoodle.embed.process.runtime.Network;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public final class NetworkUtils {
 
+    private static final int MAX_RESERVATION_ATTEMPTS = 100;
+
     private NetworkUtils() {
     }
 
@@ -40,6 +53,67 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Allocates a random free port that no other build using this method
+     * holds. The reservation is a lock on a file in {@code java.io.tmpdir},
+     * which the operating system releases when the JVM exits.
+     */
+    public static PortReservation reserveRandomPort() throws IOException {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "embedmongo-ports");
+        Files.createDirectories(directory);
+
+        for (int attempt = 0; attempt < MAX_RESERVATION_ATTEMPTS; attempt++) {
+            int port = allocateRandomPort();
+            FileChannel channel = FileChannel.open(directory.resolve(port + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    return new PortReservation(port, channel, lock);
+                }
+            } catch (OverlappingFileLockException e) {
+                // reserved by this JVM
+            }
+            channel.close();
+        }
+        throw new IOException("Unable to reserve a free port in " + MAX_RESERVATION_ATTEMPTS + " attempts");
+    }
+
+    public static boolean isPortOpen(InetAddress address, int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A port reserved by {@link #reserveRandomPort()} until it is closed.
+     */
+    public static final class PortReservation implements Closeable {
+        private final int port;
+        private final FileChannel channel;
+        private final FileLock lock;
+
+        private PortReservation(int port, FileChannel channel, FileLock lock) {
+            this.port = port;
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the file stays, deleting it would race with a build locking it right now
+            try (channel) {
+                lock.release();
+            }
+        }
+    }
+
     public static boolean localhostIsIPv6() {
         try {
             return Network.localhostIsIPv6();
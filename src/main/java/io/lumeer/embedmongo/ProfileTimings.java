@@ -0,0 +1,119 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Startup and teardown times last measured for each {@link StartMojo.Profile},
+ * kept in the distribution directory so that a build can compare its profile
+ * with the default one. Failing to read or write them never fails a build.
+ * Builds sharing the directory update the file under a lock and replace it
+ * atomically, so none of them loses another's measurement or reads half a file.
+ */
+class ProfileTimings {
+
+    static final String START = "start";
+    static final String STOP = "stop";
+
+    // file locks are held by the whole JVM, the threads of a parallel build take turns first
+    private static final Object LOCK = new Object();
+
+    private final Path file;
+
+    ProfileTimings(Path directory) {
+        this.file = directory.resolve("timings.properties");
+    }
+
+    /**
+     * Records a measurement.
+     *
+     * @return a comparison with the default profile for the log, empty if there is nothing to compare
+     */
+    String record(StartMojo.Profile profile, String phase, long millis) {
+        synchronized (LOCK) {
+            try {
+                Files.createDirectories(file.getParent());
+                try (FileChannel channel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     FileLock lock = channel.lock()) {
+                    return record(load(), profile, phase, millis);
+                }
+            } catch (IOException e) {
+                // only used for comparison
+                return "";
+            }
+        }
+    }
+
+    private String record(Properties timings, StartMojo.Profile profile, String phase, long millis) {
+        String comparison = "";
+
+        if (profile != StartMojo.Profile.DEFAULT) {
+            String reference = timings.getProperty(key(StartMojo.Profile.DEFAULT, phase));
+            comparison = reference == null
+                  ? " (no measurement of the default profile yet)"
+                  : " (default profile: " + reference + " ms)";
+        }
+
+        timings.setProperty(key(profile, phase), String.valueOf(millis));
+        try {
+            store(timings);
+        } catch (IOException e) {
+            // only used for comparison
+        }
+        return comparison;
+    }
+
+    private static String key(StartMojo.Profile profile, String phase) {
+        return profile.name().toLowerCase() + "." + phase;
+    }
+
+    private Properties load() {
+        Properties timings = new Properties();
+        if (Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                timings.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                // start over
+            }
+        }
+        return timings;
+    }
+
+    private void store(Properties timings) throws IOException {
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary)) {
+                timings.store(writer, "embedmongo startup and teardown times in milliseconds");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.Date;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+
+/**
+ * Records the scripts applied by {@link MongoScriptsMojo} together with a
+ * checksum of their content, so that a persistent database does not get the
+ * same script twice.
+ */
+class ScriptChangelog {
+
+    private final MongoCollection<Document> collection;
+
+    ScriptChangelog(MongoCollection<Document> collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * Returns whether the script has already been applied.
+     *
+     * @throws IllegalStateException if it has been applied with a different content
+     */
+    boolean isApplied(String script, String checksum) {
+        Document applied = collection.find(Filters.eq("_id", script)).first();
+        if (applied == null) {
+            return false;
+        }
+        if (!checksum.equals(applied.getString("checksum"))) {
+            throw new IllegalStateException("Script '" + script + "' has changed since it was applied on "
+                  + applied.getDate("appliedAt") + ", drop the database or remove it from the changelog to apply it again");
+        }
+        return true;
+    }
+
+    void applied(String script, String checksum, long elapsedMillis) {
+        Document entry = new Document("_id", script)
+              .append("checksum", checksum)
+              .append("appliedAt", new Date())
+              .append("elapsedMillis", elapsedMillis);
+        collection.replaceOne(Filters.eq("_id", script), entry, new ReplaceOptions().upsert(true));
+    }
+}
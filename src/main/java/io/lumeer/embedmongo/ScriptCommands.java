@@ -0,0 +1,300 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonArrayCodec;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonReader;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Translates script statements into database commands and runs them with the
+ * driver, without the server side {@code eval} command removed in MongoDB 4.2.
+ * <p>
+ * Supported statements are extended JSON command documents (alone or in an
+ * array), {@code db.runCommand(...)}, {@code db.createCollection(...)},
+ * {@code db.dropDatabase()} and the collection methods {@code insert},
+ * {@code insertOne}, {@code insertMany}, {@code update}, {@code updateOne},
+ * {@code updateMany}, {@code replaceOne}, {@code remove}, {@code deleteOne},
+ * {@code deleteMany}, {@code createIndex} and {@code drop} called on
+ * {@code db.<collection>} or {@code db.getCollection("<collection>")}. The
+ * arguments may use the mongo shell notation, e.g. unquoted keys or
+ * {@code ObjectId(...)}. Inserts are split into commands within the server
+ * limits on the number and size of documents in one batch.
+ */
+class ScriptCommands {
+
+    private static final Pattern DATABASE_CALL = Pattern.compile("db\\.(\\w+)\\((.*)\\)", Pattern.DOTALL);
+    private static final Pattern COLLECTION_CALL = Pattern.compile(
+          "db\\.(?:getCollection\\(\\s*([\"'])(.+?)\\1\\s*\\)|([\\w$]+))\\.(\\w+)\\((.*)\\)", Pattern.DOTALL);
+
+    private static final int NAMESPACE_NOT_FOUND = 26;
+
+    // maxWriteBatchSize and maxBsonObjectSize of the server, less room for the command itself
+    static final int MAX_BATCH_DOCUMENTS = 100_000;
+    static final int MAX_BATCH_BYTES = 16 * 1024 * 1024 - 16 * 1024;
+
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    private final MongoDatabase database;
+
+    ScriptCommands(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Runs one statement.
+     *
+     * @return number of commands sent to the server.
+     */
+    int execute(String statement) {
+        List<BsonDocument> commands = translate(statement);
+        for (BsonDocument command : commands) {
+            run(command);
+        }
+        return commands.size();
+    }
+
+    private void run(BsonDocument command) {
+        Document result;
+        try {
+            result = database.runCommand(command);
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() == NAMESPACE_NOT_FOUND && command.containsKey("drop")) {
+                return;
+            }
+            throw e;
+        }
+        verify(command, result);
+    }
+
+    /**
+     * Fails on the errors a write command reports with {@code ok: 1}.
+     */
+    static void verify(BsonDocument command, Document result) {
+        if (result.get("writeErrors") != null) {
+            throw new IllegalStateException("Write errors while executing " + command.getFirstKey() + ": " + result.get("writeErrors"));
+        }
+        if (result.get("writeConcernError") != null) {
+            throw new IllegalStateException("Write concern error while executing " + command.getFirstKey() + ": " + result.get("writeConcernError"));
+        }
+    }
+
+    static List<BsonDocument> translate(String statement) {
+        String trimmed = statement.trim();
+
+        if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+            return documents(parseArguments(trimmed), statement);
+        }
+
+        Matcher collectionCall = COLLECTION_CALL.matcher(trimmed);
+        if (collectionCall.matches()) {
+            String collection = collectionCall.group(2) != null ? collectionCall.group(2) : collectionCall.group(3);
+            return collectionCommands(collection, collectionCall.group(4), parseArguments(collectionCall.group(5)), statement);
+        }
+
+        Matcher databaseCall = DATABASE_CALL.matcher(trimmed);
+        if (databaseCall.matches()) {
+            return List.of(databaseCommand(databaseCall.group(1), parseArguments(databaseCall.group(2)), statement));
+        }
+
+        throw unsupported(statement);
+    }
+
+    private static BsonDocument databaseCommand(String method, BsonArray args, String statement) {
+        switch (method) {
+            case "runCommand":
+                return document(args, 0, statement);
+            case "dropDatabase":
+                return new BsonDocument("dropDatabase", new BsonInt32(1));
+            case "createCollection":
+                BsonDocument create = new BsonDocument("create", string(args, 0, statement));
+                create.putAll(optionalDocument(args, 1));
+                return create;
+            default:
+                throw unsupported(statement);
+        }
+    }
+
+    private static List<BsonDocument> collectionCommands(String collection, String method, BsonArray args, String statement) {
+        if (method.equals("insert") || method.equals("insertOne") || method.equals("insertMany")) {
+            BsonValue documents = args.isEmpty() ? null : args.get(0);
+            BsonArray toInsert = documents != null && documents.isArray() ? documents.asArray() : new BsonArray(List.of(document(args, 0, statement)));
+            return insertCommands(new BsonString(collection), toInsert);
+        }
+        return List.of(collectionCommand(collection, method, args, statement));
+    }
+
+    /**
+     * @return {@code insert} commands of at most {@link #MAX_BATCH_DOCUMENTS}
+     * documents taking {@link #MAX_BATCH_BYTES} together, a larger document is
+     * sent alone for the server to reject it.
+     */
+    static List<BsonDocument> insertCommands(BsonString collection, BsonArray documents) {
+        List<BsonDocument> commands = new ArrayList<>();
+        BsonArray batch = new BsonArray();
+        long batchBytes = 0;
+
+        for (BsonValue document : documents) {
+            int bytes = document.isDocument() ? size(document.asDocument()) : 0;
+            if (!batch.isEmpty() && (batch.size() >= MAX_BATCH_DOCUMENTS || batchBytes + bytes > MAX_BATCH_BYTES)) {
+                commands.add(new BsonDocument("insert", collection).append("documents", batch));
+                batch = new BsonArray();
+                batchBytes = 0;
+            }
+            batch.add(document);
+            batchBytes += bytes;
+        }
+
+        if (!batch.isEmpty() || commands.isEmpty()) {
+            commands.add(new BsonDocument("insert", collection).append("documents", batch));
+        }
+        return commands;
+    }
+
+    private static int size(BsonDocument document) {
+        return new RawBsonDocument(document, CODEC).getByteBuffer().remaining();
+    }
+
+    private static BsonDocument collectionCommand(String collection, String method, BsonArray args, String statement) {
+        BsonString name = new BsonString(collection);
+
+        switch (method) {
+            case "update":
+            case "updateOne":
+            case "updateMany":
+            case "replaceOne":
+                BsonDocument options = optionalDocument(args, 2);
+                boolean multi = method.equals("updateMany") || (method.equals("update") && options.getBoolean("multi", BsonBoolean.FALSE).getValue());
+                BsonDocument update = new BsonDocument("q", document(args, 0, statement))
+                      .append("u", args.size() > 1 ? args.get(1) : missing(statement))
+                      .append("upsert", options.getBoolean("upsert", BsonBoolean.FALSE))
+                      .append("multi", BsonBoolean.valueOf(multi));
+                return new BsonDocument("update", name).append("updates", new BsonArray(List.of(update)));
+            case "remove":
+            case "deleteOne":
+            case "deleteMany":
+                boolean justOne = method.equals("deleteOne")
+                      || (method.equals("remove") && args.size() > 1 && args.get(1).isBoolean() && args.get(1).asBoolean().getValue())
+                      || (method.equals("remove") && optionalDocument(args, 1).getBoolean("justOne", BsonBoolean.FALSE).getValue());
+                BsonDocument delete = new BsonDocument("q", args.isEmpty() ? new BsonDocument() : document(args, 0, statement))
+                      .append("limit", new BsonInt32(justOne ? 1 : 0));
+                return new BsonDocument("delete", name).append("deletes", new BsonArray(List.of(delete)));
+            case "createIndex":
+                BsonDocument keys = document(args, 0, statement);
+                BsonDocument index = new BsonDocument("key", keys);
+                BsonDocument indexOptions = optionalDocument(args, 1);
+                if (!indexOptions.containsKey("name")) {
+                    index.append("name", new BsonString(indexName(keys)));
+                }
+                index.putAll(indexOptions);
+                return new BsonDocument("createIndexes", name).append("indexes", new BsonArray(List.of(index)));
+            case "drop":
+                return new BsonDocument("drop", name);
+            default:
+                throw unsupported(statement);
+        }
+    }
+
+    /**
+     * @return the default index name the shell would use, e.g. {@code a_1_b_-1}.
+     */
+    private static String indexName(BsonDocument keys) {
+        StringBuilder name = new StringBuilder();
+        for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+            if (name.length() > 0) {
+                name.append('_');
+            }
+            BsonValue value = key.getValue();
+            name.append(key.getKey()).append('_').append(value.isString() ? value.asString().getValue()
+                  : value.isNumber() ? String.valueOf(value.asNumber().intValue()) : value.toString());
+        }
+        return name.toString();
+    }
+
+    private static BsonArray parseArguments(String arguments) {
+        try {
+            return new BsonArrayCodec().decode(new JsonReader("[" + arguments + "]"), DecoderContext.builder().build());
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Unable to parse arguments '" + abbreviate(arguments) + "': " + e.getMessage(), e);
+        }
+    }
+
+    private static List<BsonDocument> documents(BsonArray values, String statement) {
+        List<BsonDocument> documents = new ArrayList<>();
+        for (BsonValue value : values) {
+            if (value.isDocument()) {
+                documents.add(value.asDocument());
+            } else if (value.isArray()) {
+                documents.addAll(documents(value.asArray(), statement));
+            } else {
+                throw unsupported(statement);
+            }
+        }
+        return documents;
+    }
+
+    private static BsonDocument document(BsonArray args, int index, String statement) {
+        if (args.size() <= index || !args.get(index).isDocument()) {
+            throw new IllegalArgumentException("Expected a document as argument " + (index + 1) + " of '" + abbreviate(statement) + "'");
+        }
+        return args.get(index).asDocument();
+    }
+
+    private static BsonDocument optionalDocument(BsonArray args, int index) {
+        return args.size() > index && args.get(index).isDocument() ? args.get(index).asDocument() : new BsonDocument();
+    }
+
+    private static BsonString string(BsonArray args, int index, String statement) {
+        if (args.size() <= index || !args.get(index).isString()) {
+            throw new IllegalArgumentException("Expected a string as argument " + (index + 1) + " of '" + abbreviate(statement) + "'");
+        }
+        return args.get(index).asString();
+    }
+
+    private static BsonValue missing(String statement) {
+        throw new IllegalArgumentException("Missing argument in '" + abbreviate(statement) + "'");
+    }
+
+    private static IllegalArgumentException unsupported(String statement) {
+        return new IllegalArgumentException("Unsupported statement '" + abbreviate(statement) + "'");
+    }
+
+    private static String abbreviate(String statement) {
+        return statement.length() > 100 ? statement.substring(0, 97) + "..." : statement;
+    }
+}
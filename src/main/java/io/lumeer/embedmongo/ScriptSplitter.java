@@ -0,0 +1,130 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a script into statements at semicolons and at line ends following a
+ * complete call or document, ignoring separators inside strings, brackets and
+ * comments. Comments are left out of the statements.
+ *
+ * The script is read incrementally, only the statement being assembled is kept
+ * in memory.
+ */
+final class ScriptSplitter {
+
+    private final Reader reader;
+    private final StringBuilder statement = new StringBuilder();
+    private int lookahead = -2;
+
+    ScriptSplitter(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the next statement, or {@code null} at the end of the script.
+     */
+    String next() throws IOException {
+        int depth = 0;
+        char quote = 0;
+        int c;
+
+        while ((c = read()) >= 0) {
+            if (quote != 0) {
+                statement.append((char) c);
+                if (c == '\\') {
+                    int escaped = read();
+                    if (escaped >= 0) {
+                        statement.append((char) escaped);
+                    }
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+
+            if (c == '/' && peek() == '/') {
+                while (peek() >= 0 && peek() != '\n') {
+                    read();
+                }
+                continue;
+            }
+            if (c == '/' && peek() == '*') {
+                read();
+                int previous = 0;
+                while ((c = read()) >= 0 && !(previous == '*' && c == '/')) {
+                    previous = c;
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"', '\'', '`' -> quote = (char) c;
+                case '(', '{', '[' -> depth++;
+                case ')', '}', ']' -> depth--;
+                default -> { }
+            }
+
+            if (depth == 0 && (c == ';' || (c == '\n' && endsCompleteExpression()))) {
+                String completed = take();
+                if (completed != null) {
+                    return completed;
+                }
+                continue;
+            }
+            statement.append((char) c);
+        }
+
+        return take();
+    }
+
+    private int read() throws IOException {
+        if (lookahead != -2) {
+            int c = lookahead;
+            lookahead = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int peek() throws IOException {
+        if (lookahead == -2) {
+            lookahead = reader.read();
+        }
+        return lookahead;
+    }
+
+    private boolean endsCompleteExpression() {
+        for (int i = statement.length() - 1; i >= 0; i--) {
+            char c = statement.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == ')' || c == '}' || c == ']';
+            }
+        }
+        return false;
+    }
+
+    private String take() {
+        String trimmed = statement.toString().trim();
+        statement.setLength(0);
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+}
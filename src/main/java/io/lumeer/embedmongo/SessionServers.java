@@ -0,0 +1,146 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+
+/**
+ * Servers started with {@code scope=session}, by build. Maven shares the
+ * plugin class loader between the modules of a build that use the same
+ * plugin version, so the registry lives as long as the build. A server is
+ * kept with the plugin context of the module that started it, which holds
+ * everything needed to stop it, and the number of modules that started but
+ * did not stop it yet. The last of them stops it.
+ * <p>
+ * Servers a build left running, e.g. because a module failed before its
+ * stop goal, are stopped when the next build of a Maven daemon starts one,
+ * or when the JVM exits.
+ */
+final class SessionServers {
+
+    private static final Map<String, Server> SERVERS = new HashMap<>();
+    private static Thread shutdownHook;
+
+    private SessionServers() {
+    }
+
+    /**
+     * Counts a module as a user of the running server of the build.
+     *
+     * @return the plugin context of the server, {@code null} if there is none running.
+     */
+    static synchronized Map<Object, Object> attach(String session) {
+        Server server = SERVERS.get(session);
+        if (server == null || !isRunning(server.pluginContext)) {
+            return null;
+        }
+        server.users++;
+        return server.pluginContext;
+    }
+
+    /**
+     * Registers the server started by a module, which is its first user.
+     */
+    static synchronized void register(String session, Map<Object, Object> pluginContext) {
+        List<Map<Object, Object>> stale = new ArrayList<>();
+        SERVERS.entrySet().removeIf(entry -> !entry.getKey().equals(session) && stale.add(entry.getValue().pluginContext));
+        stale.forEach(SessionServers::stop);
+
+        // modules still counted on a server that crashed stop this one
+        Server previous = SERVERS.get(session);
+        Server server = new Server(pluginContext);
+        server.users = previous == null ? 1 : previous.users + 1;
+        SERVERS.put(session, server);
+
+        if (shutdownHook == null) {
+            // stops servers whose last module never ran, e.g. after a failure
+            shutdownHook = new Thread(SessionServers::stopAll, "embedmongo-session-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    static synchronized Map<Object, Object> get(String session) {
+        Server server = SERVERS.get(session);
+        return server == null ? null : server.pluginContext;
+    }
+
+    /**
+     * Counts a module as done with the server, the server is forgotten once
+     * no module uses it anymore.
+     *
+     * @return the number of modules still using the server.
+     */
+    static synchronized int release(String session) {
+        Server server = SERVERS.get(session);
+        if (server == null) {
+            return 0;
+        }
+        server.users--;
+        if (server.users <= 0) {
+            SERVERS.remove(session);
+        }
+        return Math.max(server.users, 0);
+    }
+
+    /**
+     * @return whether the first instance of the server is still running.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean isRunning(Map<Object, Object> pluginContext) {
+        TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) pluginContext.get(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME);
+        return mongod != null && mongod.current() != null && mongod.current().isAlive()
+              && pluginContext.get(StartMojo.MONGOD_STATE_CONTEXT_PROPERTY_NAME) == MongodState.READY;
+    }
+
+    private static void stopAll() {
+        List<Map<Object, Object>> servers = new ArrayList<>();
+        synchronized (SessionServers.class) {
+            SERVERS.values().forEach(server -> servers.add(server.pluginContext));
+            SERVERS.clear();
+        }
+        servers.forEach(SessionServers::stop);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void stop(Map<Object, Object> pluginContext) {
+        int instances = (Integer) pluginContext.getOrDefault(StartMojo.INSTANCES_CONTEXT_PROPERTY_NAME, 1);
+        for (int i = 0; i < instances; i++) {
+            TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) pluginContext.get(StartMojo.instanceKey(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME, i));
+            if (mongod != null && mongod.current() != null && mongod.current().isAlive()) {
+                pluginContext.put(StartMojo.instanceKey(StartMojo.MONGOD_STATE_CONTEXT_PROPERTY_NAME, i), MongodState.STOPPED);
+                mongod.current().stop();
+            }
+        }
+    }
+
+    private static class Server {
+        private final Map<Object, Object> pluginContext;
+        private int users;
+
+        private Server(Map<Object, Object> pluginContext) {
+            this.pluginContext = pluginContext;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.bson.Document;
+
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * When invoked, this goal stores the data directory of the running mongod as a
+ * snapshot, so that later builds with the same seed inputs can restore it
+ * instead of running {@code mongo-import} and {@code mongo-scripts} again. It
+ * has to run after the seeding goals and requires {@code snapshot} to be
+ * enabled on the {@code start} goal.
+ */
+@Mojo(name = "mongo-snapshot", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
+public class SnapshotMojo extends AbstractEmbeddedMongoMojo {
+
+    @Override
+    public void executeStart() throws MojoExecutionException, MojoFailureException {
+        if (!(getPluginContext().get(StartMojo.SNAPSHOT_CONTEXT_PROPERTY_NAME) instanceof DataSnapshot dataSnapshot)) {
+            getLog().warn("No data snapshot configured, enable snapshot on the start goal");
+            return;
+        }
+
+        if (dataSnapshot.isRestored() || dataSnapshot.exists()) {
+            getLog().info("Data snapshot " + dataSnapshot.getFingerprint() + " is up to date");
+            return;
+        }
+
+        ServerAddress address = getServerAddress();
+        try (MongoClientRegistry.Lease lease = acquireClient(address.getHost(), address.getPort())) {
+            MongoDatabase admin = lease.getClient().getDatabase("admin");
+            long start = System.nanoTime();
+
+            // flushes all data files and blocks writes while they are copied
+            admin.runCommand(new Document("fsync", 1).append("lock", true));
+            try {
+                dataSnapshot.capture();
+            } finally {
+                admin.runCommand(new Document("fsyncUnlock", 1));
+            }
+
+            getLog().info("Data snapshot " + dataSnapshot.getFingerprint() + " taken in "
+                  + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException | MongoException e) {
+            throw new MojoExecutionException("Unable to take the data snapshot of " + dataSnapshot.getDataDirectory(), e);
+        }
+    }
+}
@@ -18,41 +18,58 @@
  */
 package io.lumeer.embedmongo;
 
-import static org.apache.commons.lang3.StringUtils.*;
-
-import de.flapdoodle.net.ProxyFactory;
+import io.lumeer.embedmongo.log.AsyncFileOutputStreamProcessor;
+import io.lumeer.embedmongo.log.FileOutputStreamProcessor;
+import io.lumeer.embedmongo.log.LogRotation;
 import io.lumeer.embedmongo.log.Loggers;
+import io.lumeer.embedmongo.log.MongodLogAnalyzer;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import de.flapdoodle.embed.mongo.commands.MongodArguments;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
 import de.flapdoodle.embed.mongo.transitions.Mongod;
 import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
 import de.flapdoodle.embed.mongo.types.DatabaseDir;
-import de.flapdoodle.embed.mongo.types.DistributionBaseUrl;
-import de.flapdoodle.embed.process.config.DownloadConfig;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.apache.maven.settings.Settings;
+import org.bson.Document;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
 
 import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.process.archives.ExtractedFileSet;
 import de.flapdoodle.embed.process.io.ProcessOutput;
-import de.flapdoodle.embed.process.transitions.DownloadPackage;
-import de.flapdoodle.embed.process.transitions.ImmutableDownloadPackage;
-import de.flapdoodle.reverse.StateID;
-import de.flapdoodle.reverse.Transition;
-import de.flapdoodle.reverse.TransitionWalker;
-import de.flapdoodle.reverse.Transitions;
 import de.flapdoodle.reverse.transitions.Start;
 
 /**
@@ -65,8 +82,54 @@ import de.flapdoodle.reverse.transitions.Start;
 @Mojo(name="start", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST)
 public class StartMojo extends AbstractEmbeddedMongoMojo {
 
+    private static final int COMMAND_NOT_FOUND = 59;
+    private static final int ALREADY_INITIALIZED = 23;
+    private static final int MAX_PORT_ATTEMPTS = 3;
+
     private static final String PACKAGE_NAME = StartMojo.class.getPackage().getName();
     public static final String MONGOD_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".mongod";
+    public static final String MONGOD_STATE_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".mongod.state";
+    public static final String SNAPSHOT_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".snapshot";
+    public static final String CLIENTS_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".clients";
+    public static final String INSTANCES_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".instances";
+    public static final String LOGS_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".logs";
+    public static final String PORTS_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".ports";
+    public static final String PROFILE_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".profile";
+    public static final String EPHEMERAL_DIRECTORIES_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".ephemeral";
+    public static final String PROPERTIES_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".properties";
+    public static final String DAEMON_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".daemon";
+    public static final String RESET_DATABASES_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".reset";
+    public static final String BASELINE_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".baseline";
+    public static final String SUPERVISOR_CONTEXT_PROPERTY_NAME = PACKAGE_NAME + ".supervisor";
+
+    /**
+     * Suffix of ephemeral data directories being deleted by {@link StopMojo}.
+     */
+    static final String DELETED_SUFFIX = ".deleted";
+
+    private static final String EPHEMERAL_CACHE_SIZE_GB = "0.25";
+    private static final long DAEMON_HEALTH_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * mongod options set by the plugin, with the parameter to use instead.
+     */
+    private static final Map<String, String> MANAGED_ARGS = Map.of(
+          "port", "port",
+          "bind_ip", "bindIp",
+          "dbpath", "databaseDirectory",
+          "replSet", "replicaSet",
+          "storageEngine", "storageEngine",
+          "wiredTigerCacheSizeGB", "wiredTigerCacheSizeGB",
+          "maxConns", "maxConns",
+          "setParameter", "setParameters");
+
+    /**
+     * @return the plugin context key of a value kept for each instance, the
+     *         first instance uses the plain key.
+     */
+    static String instanceKey(String key, int instance) {
+        return instance == 0 ? key : key + "." + instance;
+    }
 
     @Override
     protected void savePortToProjectProperties(int port) {
@@ -109,12 +172,71 @@ public class StartMojo extends AbstractEmbeddedMongoMojo {
     private String logFileEncoding;
 
     /**
-     * The base URL to be used when downloading MongoDB
-     * 
-     * @since 0.1.10
+     * Number of output blocks the {@code async} logging style queues before
+     * applying {@code logOverflow}.
+     */
+    @Parameter(property = "embedmongo.logQueueSize", defaultValue = "8192")
+    private int logQueueSize = 8192;
+
+    /**
+     * What the {@code async} logging style does with output while its queue
+     * is full, {@code block} to wait for the writer or {@code drop} to
+     * discard and count it.
+     */
+    @Parameter(property = "embedmongo.logOverflow", defaultValue = "block")
+    private String logOverflow = "block";
+
+    /**
+     * Maximum time in milliseconds the {@code async} logging style keeps
+     * output in memory before writing it to the file.
+     */
+    @Parameter(property = "embedmongo.logFlushInterval", defaultValue = "1000")
+    private long logFlushInterval = 1000;
+
+    /**
+     * Size in bytes after which the {@code file} and {@code async} logs are
+     * rotated, 0 for no limit.
+     */
+    @Parameter(property = "embedmongo.logMaxSize", defaultValue = "0")
+    private long logMaxSize;
+
+    /**
+     * Age in milliseconds after which the {@code file} and {@code async} logs
+     * are rotated, 0 for no limit.
+     */
+    @Parameter(property = "embedmongo.logRotationInterval", defaultValue = "0")
+    private long logRotationInterval;
+
+    /**
+     * Number of rotated log files kept next to the log file.
+     */
+    @Parameter(property = "embedmongo.logMaxFiles", defaultValue = "5")
+    private int logMaxFiles = 5;
+
+    /**
+     * Whether rotated log files are compressed with gzip.
      */
-    @Parameter(property = "embedmongo.downloadPath", defaultValue = "http://fastdl.mongodb.org")
-    private String downloadPath;
+    @Parameter(property = "embedmongo.logCompress", defaultValue = "false")
+    private boolean logCompress;
+
+    /**
+     * Analyze the structured log of mongod while it runs and write a report
+     * of slow operations, collection scans, lock waits and connections when
+     * it is stopped, to {@code logReportFile} and the same file with the
+     * {@code .html} extension. Needs mongod 4.4 or newer.
+     */
+    @Parameter(property = "embedmongo.logReport", defaultValue = "false")
+    private boolean logReport;
+
+    @Parameter(property = "embedmongo.logReportFile", defaultValue = "${project.build.directory}/embedmongo-log-report.json")
+    private String logReportFile;
+
+    /**
+     * Operations taking longer than this many milliseconds are logged by
+     * mongod as slow and reported when {@code logReport} is enabled.
+     */
+    @Parameter(property = "embedmongo.slowms", defaultValue = "100")
+    private int slowms = 100;
 
     /**
      * Should authorization be enabled for MongoDB
@@ -140,8 +262,148 @@ public class StartMojo extends AbstractEmbeddedMongoMojo {
     @Parameter(property = "embedmongo.storageEngine")
     private String storageEngine;
 
-    @Parameter( defaultValue = "${settings}", readonly = true )
-    protected Settings settings;
+    /**
+     * Size of the WiredTiger cache of each instance in GB, mongod takes half
+     * of the memory minus 1 GB by default. At least 0.25, or a whole number
+     * before MongoDB 3.4.
+     */
+    @Parameter(property = "embedmongo.wiredTigerCacheSizeGB")
+    private Double wiredTigerCacheSizeGB;
+
+    /**
+     * Maximum number of connections each instance accepts.
+     */
+    @Parameter(property = "embedmongo.maxConns")
+    private Integer maxConns;
+
+    /**
+     * Server parameters passed to mongod as {@code --setParameter name=value}.
+     */
+    @Parameter
+    private Map<String, String> setParameters;
+
+    /**
+     * Further mongod options, by name with or without the leading dashes,
+     * an empty value for flags. Options the plugin sets itself are rejected.
+     */
+    @Parameter
+    private Map<String, String> mongodArgs;
+
+    /**
+     * Maximum time in milliseconds to wait for MongoDB to start and accept
+     * connections before the build fails.
+     */
+    @Parameter(property = "embedmongo.startupTimeout", defaultValue = "60000")
+    private long startupTimeout = 60000;
+
+    /**
+     * How many times mongod is started again when it exits unexpectedly. With
+     * the default of 0 a crash is only recorded and fails the {@code stop} goal.
+     */
+    @Parameter(property = "embedmongo.maxRestarts", defaultValue = "0")
+    private int maxRestarts;
+
+    /**
+     * Restore the data directory from a snapshot taken by the
+     * {@code mongo-snapshot} goal when the version, the configuration of the
+     * {@code mongo-import} and {@code mongo-scripts} executions and the files
+     * they read are unchanged. The seeding goals are skipped in that case.
+     * Without {@code databaseDirectory} the snapshot is restored into a
+     * temporary directory deleted by the {@code stop} goal. The inMemory
+     * storage engine has no data directory and cannot be combined with it.
+     */
+    @Parameter(property = "embedmongo.snapshot", defaultValue = "false")
+    private boolean snapshot;
+
+    /**
+     * Directory keeping the data directory snapshots.
+     */
+    @Parameter(property = "embedmongo.snapshotDirectory", defaultValue = "${user.home}/.m2/embedmongo/snapshots")
+    private File snapshotDirectory;
+
+    /**
+     * Additional files or directories the seeded data depends on.
+     */
+    @Parameter
+    private File[] snapshotInputs;
+
+    /**
+     * Number of mongod processes started at the same time, each one with its
+     * own port and a subdirectory {@code instance-<n>} of
+     * {@code databaseDirectory}. Their ports are published as
+     * {@code embedmongo.port.<n>} and as the comma separated
+     * {@code embedmongo.ports}, {@code embedmongo.port} is the first one. The
+     * other goals of this plugin work with the first instance.
+     */
+    @Parameter(property = "embedmongo.instances", defaultValue = "1")
+    private int instances = 1;
+
+    /**
+     * Tuning of the started instances, {@code default} or {@code ephemeral}
+     * for throwaway test data: the inMemory storage engine where the binary
+     * has it, otherwise WiredTiger with a 256 MB cache on {@code /dev/shm}
+     * if available, no journal and no diagnostic data collection. The data
+     * directory is deleted by the {@code stop} goal unless
+     * {@code databaseDirectory} is set.
+     */
+    @Parameter(property = "embedmongo.profile", defaultValue = "default")
+    private String profile = "default";
+
+    public enum Profile {
+        DEFAULT, EPHEMERAL
+    }
+
+    private boolean inMemory;
+
+    /**
+     * Name of a replica set formed by the started instances, which is needed
+     * for transactions and change streams. The first instance becomes the
+     * primary. Without it every instance is a standalone server.
+     */
+    @Parameter(property = "embedmongo.replicaSet")
+    private String replicaSet;
+
+    /**
+     * Leave mongod running after the build and use it again in the following
+     * ones, as long as it is healthy and the version and options are
+     * unchanged. The databases a build uses are dropped the first time it
+     * uses them: the one in {@code embedmongo.database} if defined, those of the
+     * {@code mongo-import} and {@code mongo-scripts} goals and
+     * {@code resetDatabases}. Supports a single instance without a replica
+     * set or snapshot.
+     */
+    @Parameter(property = "embedmongo.reuse", defaultValue = "false")
+    private boolean reuse;
+
+    /**
+     * Time in milliseconds after the last build using a reused mongod when
+     * it stops itself.
+     */
+    @Parameter(property = "embedmongo.reuseIdleTimeout", defaultValue = "1800000")
+    private long reuseIdleTimeout = 1800000;
+
+    /**
+     * Directory keeping the data, log and state of the reused mongod of each
+     * version.
+     */
+    @Parameter(property = "embedmongo.daemonDirectory", defaultValue = "${user.home}/.m2/embedmongo/daemon")
+    private File daemonDirectory;
+
+    /**
+     * Further databases a reused mongod drops before the build uses it, e.g.
+     * those only the tests write to.
+     */
+    @Parameter
+    private List<String> resetDatabases;
+
+    public StartMojo() {
+    }
+
+    StartMojo(int port, String version, File distributionDirectory, Profile profile) {
+        super(port, version, distributionDirectory);
+        this.profile = profile.name().toLowerCase();
+        this.logging = "none";
+    }
 
     @Override
     protected void onSkip() {
@@ -149,95 +411,712 @@ public class StartMojo extends AbstractEmbeddedMongoMojo {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void executeStart() throws MojoExecutionException, MojoFailureException {
-        var b = Mongod.builder()
-              .processOutput(Start.to(ProcessOutput.class).initializedWith(getOutputConfig()));
+        if (!isSessionScope()) {
+            startServers();
+            return;
+        }
 
-        if (StringUtils.isNotEmpty(downloadPath)) {
-            b.distributionBaseUrl(getDownloadPath());
-            b.downloadPackage(getProxyFactory(settings));
+        if (project.getProperties().getProperty("embedmongo.database") == null) {
+            project.getProperties().put("embedmongo.database", getModuleDatabase());
         }
 
-        if (databaseDirectory != null) {
-            b.databaseDir(Start.to(DatabaseDir.class).initializedWith(DatabaseDir.of(databaseDirectory.toPath())));
+        // modules of a parallel build must not start the server twice
+        synchronized (SessionServers.class) {
+            Map<Object, Object> server = SessionServers.attach(getSessionKey());
+            if (server != null) {
+                attach(server);
+                return;
+            }
+
+            startServers();
+            SessionServers.register(getSessionKey(), getPluginContext());
         }
+    }
 
-        var args = MongodArguments.defaults()
-              .withArgs(getMongodArgs())
-              .withAuth(authEnabled)
-              .withUseNoJournal(!journal);
+    /**
+     * Lets the goals of this module use the server started by an earlier module.
+     */
+    @SuppressWarnings("unchecked")
+    private void attach(Map<Object, Object> server) {
+        int serverInstances = (Integer) server.getOrDefault(INSTANCES_CONTEXT_PROPERTY_NAME, 1);
+        for (int i = 0; i < serverInstances; i++) {
+            getPluginContext().put(instanceKey(MONGOD_CONTEXT_PROPERTY_NAME, i), server.get(instanceKey(MONGOD_CONTEXT_PROPERTY_NAME, i)));
+            getPluginContext().put(instanceKey(MONGOD_STATE_CONTEXT_PROPERTY_NAME, i), server.get(instanceKey(MONGOD_STATE_CONTEXT_PROPERTY_NAME, i)));
+        }
+        getPluginContext().put(INSTANCES_CONTEXT_PROPERTY_NAME, serverInstances);
 
-        if (storageEngine != null) {
-            args.withStorageEngine(storageEngine);
+        Map<String, String> properties = (Map<String, String>) server.get(PROPERTIES_CONTEXT_PROPERTY_NAME);
+        project.getProperties().putAll(properties);
+        getLog().info("Using the mongod of this build at " + properties.get("embedmongo.connectionString") + ", database " + project.getProperties().getProperty("embedmongo.database") + ".");
+    }
+
+    /**
+     * @return a database name for this module, for modules sharing a server.
+     */
+    private String getModuleDatabase() {
+        String name = project.getArtifactId().replaceAll("[^A-Za-z0-9_-]", "_");
+        return name.length() > 63 ? name.substring(0, 63) : name;
+    }
+
+    private void startServers() throws MojoExecutionException, MojoFailureException {
+        if (instances < 1) {
+            throw new MojoExecutionException("At least one instance has to be started, instances=" + instances);
         }
 
-        b.mongodArguments(Start.to(MongodArguments.class).initializedWith(args));
+        if (reuse && (instances > 1 || replicaSet != null || snapshot)) {
+            throw new MojoExecutionException("reuse supports a single instance without replicaSet or snapshot");
+        }
+
+        if (snapshot && "inMemory".equalsIgnoreCase(storageEngine)) {
+            throw new MojoExecutionException("snapshot restores a data directory, which the inMemory storage engine does not use; "
+                  + "remove storageEngine or disable snapshot");
+        }
+
+        if ("async".equalsIgnoreCase(logging) && (logQueueSize < 1 || logFlushInterval < 1)) {
+            throw new MojoExecutionException("logQueueSize and logFlushInterval have to be positive, logQueueSize=" + logQueueSize
+                  + ", logFlushInterval=" + logFlushInterval);
+        }
 
         if (bindIp == null) {
             bindIp = InetAddress.getLoopbackAddress().getHostAddress();
         }
 
-        int port = getPort();
-        if (isRandomPort()) {
-            port = NetworkUtils.allocateRandomPort();
+        String fingerprint = snapshot ? getSnapshotFingerprint() : null;
+
+        Profile profile = getProfile();
+        ExtractedFileSet distribution = prepareDistribution(mongodBuilder().build().transitions(getVersion()));
+        if (profile == Profile.EPHEMERAL) {
+            // a snapshot needs data on disk
+            inMemory = !snapshot && storageEngine == null && wiredTigerCacheSizeGB == null && supportsInMemory(distribution.executable());
+            getLog().info("Ephemeral profile uses " + (inMemory ? "the inMemory storage engine."
+                  : isWiredTiger() ? "WiredTiger with a small cache on " + getEphemeralRoot() + "." : "the " + storageEngine + " storage engine on " + getEphemeralRoot() + "."));
         }
-        savePortToProjectProperties(port);
+        validateMongodOptions();
 
-        b.net(Start.to(Net.class).initializedWith(Net.of(bindIp, port, NetworkUtils.localhostIsIPv6())));
+        if (reuse) {
+            useDaemon(distribution.executable());
+            return;
+        }
 
-        final Thread mongoThread = new Thread(() -> {
-            Mongod mongod = b.build();
+        List<Integer> ports = allocatePorts();
 
-            Transitions transitions = mongod.transitions(getVersion());
-            try (TransitionWalker.ReachedState<RunningMongodProcess> running = transitions.walker()
-                  .initState(StateID.of(RunningMongodProcess.class))) {
+        List<Path> dataDirectories = new ArrayList<>();
+        List<ProcessOutput> outputs = new ArrayList<>();
+        List<Mongod> mongods = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            Path dataDirectory = getDataDirectory(i, profile);
+            if (snapshot) {
+                dataDirectory = restoreSnapshot(fingerprint, dataDirectory, i);
+            }
+            dataDirectories.add(dataDirectory);
+            outputs.add(getOutputConfig(i));
+            mongods.add(buildMongod(dataDirectory, ports.get(i), outputs.get(i)));
+        }
 
-                getPluginContext().put(MONGOD_CONTEXT_PROPERTY_NAME, running);
+        final long startNanos = System.nanoTime();
+        final List<MongodSupervisor> supervisors = new ArrayList<>();
+        final List<Thread> mongoThreads = new ArrayList<>();
 
-                getLog().info("Mongod successfully started.");
+        for (int i = 0; i < instances; i++) {
+            supervisors.add(null);
+            mongoThreads.add(null);
+            startInstance(i, mongods.get(i), supervisors, mongoThreads);
+        }
+        getPluginContext().put(INSTANCES_CONTEXT_PROPERTY_NAME, instances);
 
-                while (running.current().isAlive()) {
+        try {
+            // all instances are starting at the same time, so waiting for them one by one costs nothing
+            for (int i = 0; i < instances; i++) {
+                long instanceStartNanos = startNanos;
+                for (int attempt = 1; ; attempt++) {
                     try {
-                        TimeUnit.MINUTES.sleep(1);
-                    } catch (InterruptedException e) {
+                        awaitReady(supervisors.get(i).started(), mongoThreads.get(i), instanceStartNanos, i);
                         break;
+                    } catch (MojoExecutionException e) {
+                        if (attempt >= MAX_PORT_ATTEMPTS || !isPortTaken(e, ports.get(i))) {
+                            throw e;
+                        }
+                        getLog().warn(getInstanceName(i) + " could not bind port " + ports.get(i) + ", which another process took, retrying on another port.");
+                        ports.set(i, reservePort());
+                        instanceStartNanos = System.nanoTime();
+                        startInstance(i, buildMongod(dataDirectories.get(i), ports.get(i), outputs.get(i)), supervisors, mongoThreads);
                     }
                 }
-            } catch (Exception e) {
-                getLog().error("Unable to start the mongod.", e);
+            }
+            if (replicaSet != null) {
+                initiateReplicaSet(ports, startNanos);
+            }
+        } catch (MojoExecutionException e) {
+            mongoThreads.forEach(Thread::interrupt);
+            releasePortReservations(getPluginContext());
+            throw e;
+        }
+
+        savePortToProjectProperties(ports.get(0));
+        if (instances > 1) {
+            savePortsToProjectProperties(ports);
+        }
+        publishConnectionString(ports);
+
+        long startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        getPluginContext().put(PROFILE_CONTEXT_PROPERTY_NAME, profile);
+        getLog().info("Started " + instances + " instance(s) with the " + profile.name().toLowerCase() + " profile in " + startupMillis + " ms"
+              + new ProfileTimings(getDistributionCache().getDirectory()).record(profile, ProfileTimings.START, startupMillis) + ".");
+
+        try {
+            if (isWait()) {
+                for (Thread mongoThread : mongoThreads) {
+                    mongoThread.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            getLog().info("Mongod got interrupted.");
+        }
+    }
+
+    private void publishConnectionString(List<Integer> ports) {
+        project.getProperties().put("embedmongo.connectionString", getConnectionString(ports));
+
+        Map<String, String> properties = new HashMap<>();
+        project.getProperties().stringPropertyNames().stream()
+              .filter(name -> name.startsWith("embedmongo.port") || name.equals("embedmongo.connectionString"))
+              .forEach(name -> properties.put(name, project.getProperties().getProperty(name)));
+        getPluginContext().put(PROPERTIES_CONTEXT_PROPERTY_NAME, properties);
+    }
+
+    /**
+     * Attaches to the mongod an earlier build left running when it is
+     * healthy and runs with the same version and options, otherwise starts
+     * a new one that the following builds can reuse.
+     */
+    private void useDaemon(Path executable) throws MojoExecutionException {
+        final long startNanos = System.nanoTime();
+        final String version = getVersion().asInDownloadPath();
+        final MongodDaemon daemon = new MongodDaemon(daemonDirectory.toPath().resolve(version));
+        final String options = String.join(" ", getDaemonOptions(daemon));
+
+        Properties state;
+        boolean attached;
+        try (Closeable lock = daemon.lock()) {
+            state = daemon.readState();
+            String mismatch = state == null ? "none is running" : getDaemonMismatch(state, executable, version, options);
+            attached = mismatch == null;
+
+            if (!attached) {
+                getLog().info("Starting a mongod for reuse, " + mismatch + ".");
+                if (state != null) {
+                    // only a process verified to be the recorded mongod is stopped
+                    MongodDaemon.findProcess(state).ifPresent(MongodDaemon::stop);
+                    daemon.deleteState();
+                }
+                state = launchDaemon(daemon, executable, version, options, startNanos);
+            }
+
+            // taken before the lock is released, so that the watchdog sees the daemon in use
+            getPluginContext().put(DAEMON_CONTEXT_PROPERTY_NAME, daemon.use());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to use the mongod in " + daemon.getDataDirectory().getParent(), e);
+        }
+
+        int port = Integer.parseInt(state.getProperty(MongodDaemon.PORT));
+        getPluginContext().put(INSTANCES_CONTEXT_PROPERTY_NAME, 1);
+        getPluginContext().put(RESET_DATABASES_CONTEXT_PROPERTY_NAME, ConcurrentHashMap.newKeySet());
+        savePortToProjectProperties(port);
+        publishConnectionString(List.of(port));
+
+        List<String> databases = new ArrayList<>();
+        if (project.getProperties().getProperty("embedmongo.database") != null) {
+            databases.add(project.getProperties().getProperty("embedmongo.database"));
+        }
+        if (resetDatabases != null) {
+            databases.addAll(resetDatabases);
+        }
+        resetReusedDatabases(getMemberHost(), port, databases);
+
+        getLog().info((attached ? "Reusing" : "Started") + " mongod " + state.getProperty(MongodDaemon.PID) + " on port " + port + " in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms, it stops after " + reuseIdleTimeout + " ms without a build.");
+    }
+
+    /**
+     * @return the mongod options besides the port, each build has to use the same ones to reuse the daemon.
+     */
+    private List<String> getDaemonOptions(MongodDaemon daemon) throws MojoExecutionException {
+        List<String> options = new ArrayList<>(List.of(
+              "--bind_ip", bindIp,
+              "--dbpath", daemon.getDataDirectory().toString()));
+        if (authEnabled) {
+            options.add("--auth");
+        }
+        if (inMemory) {
+            options.addAll(List.of("--storageEngine", "inMemory"));
+        } else if (storageEngine != null) {
+            options.addAll(List.of("--storageEngine", storageEngine));
+        }
+        new TreeMap<>(getMongodArgs()).forEach((name, value) -> {
+            options.add(name);
+            if (!value.isEmpty()) {
+                options.add(value);
             }
         });
+        new TreeMap<>(getMongodParams()).forEach((name, value) -> options.addAll(List.of("--setParameter", name + "=" + value)));
+        return options;
+    }
+
+    /**
+     * @return why the recorded daemon can't be reused, {@code null} if it can.
+     */
+    private String getDaemonMismatch(Properties state, Path executable, String version, String options) throws IOException {
+        if (MongodDaemon.findProcess(state).isEmpty()) {
+            return "mongod " + state.getProperty(MongodDaemon.PID) + " is not running";
+        }
+        if (!version.equals(state.getProperty(MongodDaemon.VERSION)) || !options.equals(state.getProperty(MongodDaemon.OPTIONS))
+              || !executable.toRealPath().toString().equals(state.getProperty(MongodDaemon.EXECUTABLE))) {
+            return "the running one has other options";
+        }
+
+        int port = Integer.parseInt(state.getProperty(MongodDaemon.PORT));
+        if (!isRandomPort() && port != getPort()) {
+            return "the running one listens on port " + port;
+        }
+
+        try (MongoClientRegistry.Lease lease = acquireClient(getMemberHost(), port)) {
+            String serverVersion = lease.getClient().getDatabase("admin")
+                  .withTimeout(DAEMON_HEALTH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                  .runCommand(new Document("buildInfo", 1))
+                  .getString("version");
+            return version.equals(serverVersion) ? null : "the running one is version " + serverVersion;
+        } catch (MongoException e) {
+            evictClient(getMemberHost(), port);
+            return "the running one does not answer (" + e.getMessage() + ")";
+        }
+    }
+
+    private Properties launchDaemon(MongodDaemon daemon, Path executable, String version, String options, long startNanos) throws IOException, MojoExecutionException {
+        int port = isRandomPort() ? reservePort() : getPort();
+
+        // the real path, which is what the process table shows
+        String executablePath = executable.toRealPath().toString();
+        List<String> command = new ArrayList<>(List.of(executablePath, "--port", String.valueOf(port)));
+        command.addAll(getDaemonOptions(daemon));
+        Process process = daemon.launch(command);
+
+        final long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(startupTimeout);
+        while (true) {
+            if (!process.isAlive()) {
+                throw new MojoExecutionException("Mongod exited with " + process.exitValue() + ", see " + daemon.getLogFile());
+            }
+            try {
+                ping(ServerAddress.of(InetAddress.getByName(getMemberHost()), port), DAEMON_HEALTH_TIMEOUT_MILLIS);
+                break;
+            } catch (MongoException e) {
+                if (System.nanoTime() > deadline) {
+                    process.destroyForcibly();
+                    throw new MojoExecutionException("Mongod is not accepting connections within " + startupTimeout + " ms, see " + daemon.getLogFile(), e);
+                }
+            }
+        }
+
+        Properties state = new Properties();
+        state.setProperty(MongodDaemon.PID, String.valueOf(process.pid()));
+        state.setProperty(MongodDaemon.PORT, String.valueOf(port));
+        state.setProperty(MongodDaemon.VERSION, version);
+        state.setProperty(MongodDaemon.EXECUTABLE, executablePath);
+        state.setProperty(MongodDaemon.DATA_DIRECTORY, daemon.getDataDirectory().toString());
+        state.setProperty(MongodDaemon.OPTIONS, options);
+        daemon.writeState(state);
+        daemon.startWatchdog(process.pid(), reuseIdleTimeout);
+
+        return state;
+    }
+
+    private void startInstance(int instance, Mongod mongod, List<MongodSupervisor> supervisors, List<Thread> mongoThreads) {
+        MongodSupervisor supervisor = new MongodSupervisor(mongod, getVersion(), getPluginContext(), getLog(), maxRestarts, getInstanceName(instance), instance);
+        Thread mongoThread = new Thread(supervisor, instances == 1 ? "embedmongo-supervisor" : "embedmongo-supervisor-" + instance);
         mongoThread.setDaemon(true);
         mongoThread.start();
 
+        supervisors.set(instance, supervisor);
+        mongoThreads.set(instance, mongoThread);
+        getPluginContext().put(instanceKey(SUPERVISOR_CONTEXT_PROPERTY_NAME, instance), mongoThread);
+    }
+
+    private Mongod buildMongod(Path dataDirectory, int port, ProcessOutput output) throws MojoExecutionException {
+        var b = mongodBuilder()
+              .processOutput(Start.to(ProcessOutput.class).initializedWith(output));
+
+        if (dataDirectory != null) {
+            b.databaseDir(Start.to(DatabaseDir.class).initializedWith(DatabaseDir.of(dataDirectory)));
+        }
+
+        var args = MongodArguments.defaults()
+              .withArgs(getMongodArgs())
+              .withAuth(authEnabled)
+              .withUseNoJournal(!journal && replicaSet == null);
+
+        if (storageEngine != null) {
+            args = args.withStorageEngine(storageEngine);
+        }
+        args = args.withParams(getMongodParams());
+        if (inMemory) {
+            args = args.withStorageEngine("inMemory");
+        }
+        if (replicaSet != null) {
+            args = args.withReplication(Storage.of(replicaSet, 0));
+        }
+
+        b.mongodArguments(Start.to(MongodArguments.class).initializedWith(args));
+        b.net(Start.to(Net.class).initializedWith(Net.of(bindIp, port, NetworkUtils.localhostIsIPv6())));
+
+        return b.build();
+    }
+
+    /**
+     * @return reserved random ports when {@code randomPort} is set, otherwise
+     *         the configured port followed by consecutive ones.
+     */
+    private List<Integer> allocatePorts() throws MojoExecutionException {
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            ports.add(isRandomPort() ? reservePort() : getPort() + i);
+        }
+        if (new HashSet<>(ports).size() < ports.size()) {
+            throw new MojoExecutionException("Unable to allocate distinct ports for " + instances + " instances: " + ports);
+        }
+        return ports;
+    }
+
+    /**
+     * Makes the started instances members of {@link #replicaSet} and waits
+     * until the first one, which has the highest priority, is the primary.
+     */
+    private void initiateReplicaSet(List<Integer> ports, long startNanos) throws MojoExecutionException {
+        final long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(startupTimeout);
+        final String host = getMemberHost();
+
+        List<Document> members = new ArrayList<>();
+        for (int i = 0; i < ports.size(); i++) {
+            members.add(new Document("_id", i)
+                  .append("host", host + ":" + ports.get(i))
+                  .append("priority", i == 0 ? 2 : 1));
+        }
+        Document config = new Document("_id", replicaSet)
+              .append("members", members)
+              // the default election timeout of 10 s delays the first election of a multi member set
+              .append("settings", new Document("electionTimeoutMillis", 1000));
+
+        try (MongoClientRegistry.Lease lease = acquireClient(host, ports.get(0))) {
+            MongoDatabase admin = lease.getClient().getDatabase("admin");
+            try {
+                admin.runCommand(new Document("replSetInitiate", config));
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() != ALREADY_INITIALIZED) {
+                    throw e;
+                }
+                getLog().info("Replica set " + replicaSet + " is already initiated.");
+            }
+
+            while (!isWritablePrimary(admin)) {
+                if (System.nanoTime() > deadline) {
+                    throw new MojoExecutionException("Replica set " + replicaSet + " has no primary within " + startupTimeout + " ms.");
+                }
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+        } catch (MongoException e) {
+            throw new MojoExecutionException("Unable to initiate replica set " + replicaSet + ".", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while waiting for a primary of replica set " + replicaSet + ".", e);
+        }
+
+        getLog().info("Replica set " + replicaSet + " has a primary after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms.");
+    }
+
+    private static boolean isWritablePrimary(MongoDatabase admin) {
+        try {
+            return admin.runCommand(new Document("hello", 1)).getBoolean("isWritablePrimary", false);
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() != COMMAND_NOT_FOUND) {
+                throw e;
+            }
+            // servers older than 4.4.2
+            return admin.runCommand(new Document("isMaster", 1)).getBoolean("ismaster", false);
+        }
+    }
+
+    /**
+     * @return the host under which the instances reach each other and the clients reach them.
+     */
+    private String getMemberHost() {
+        try {
+            return InetAddress.getByName(bindIp).isAnyLocalAddress() ? InetAddress.getLoopbackAddress().getHostAddress() : bindIp;
+        } catch (UnknownHostException e) {
+            return bindIp;
+        }
+    }
+
+    private String getConnectionString(List<Integer> ports) {
+        if (replicaSet == null) {
+            return "mongodb://" + getMemberHost() + ":" + ports.get(0);
+        }
+        return ports.stream().map(port -> getMemberHost() + ":" + port)
+              .collect(Collectors.joining(",", "mongodb://", "/?replicaSet=" + replicaSet));
+    }
+
+    /**
+     * Reserves a random port until {@link StopMojo} releases it, so that
+     * parallel builds do not pick the same one before mongod binds it.
+     */
+    @SuppressWarnings("unchecked")
+    private int reservePort() throws MojoExecutionException {
+        try {
+            NetworkUtils.PortReservation reservation = NetworkUtils.reserveRandomPort();
+            ((List<NetworkUtils.PortReservation>) getPluginContext().computeIfAbsent(PORTS_CONTEXT_PROPERTY_NAME, key -> new ArrayList<NetworkUtils.PortReservation>()))
+                  .add(reservation);
+            return reservation.getPort();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to reserve a random port", e);
+        }
+    }
+
+    /**
+     * @return whether the start failed because some other process took the
+     *         random port between its reservation and mongod binding it.
+     */
+    private boolean isPortTaken(MojoExecutionException e, int port) {
+        try {
+            return isRandomPort() && e.getCause() != null && NetworkUtils.isPortOpen(InetAddress.getByName(getMemberHost()), port);
+        } catch (UnknownHostException ex) {
+            return false;
+        }
+    }
+
+    private void savePortsToProjectProperties(List<Integer> ports) {
+        for (int i = 0; i < ports.size(); i++) {
+            project.getProperties().put("embedmongo.port." + i, String.valueOf(ports.get(i)));
+        }
+        project.getProperties().put("embedmongo.ports", ports.stream().map(String::valueOf).collect(Collectors.joining(",")));
+    }
+
+    private String getInstanceName(int instance) {
+        return instances == 1 ? "Mongod" : "Mongod #" + instance;
+    }
+
+    /**
+     * Blocks until the mongod process is running and answers a {@code ping},
+     * so that the goals following {@code start} do not race against startup.
+     */
+    private void awaitReady(CompletableFuture<RunningMongodProcess> started, Thread mongoThread, long startNanos, int instance) throws MojoExecutionException {
+        final long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(startupTimeout);
+        final String name = getInstanceName(instance);
+
         try {
-            if (isWait()) mongoThread.join();
+            RunningMongodProcess process = started.get(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS);
+            long processMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+            ping(process.getServerAddress(), Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+            getPluginContext().put(instanceKey(MONGOD_STATE_CONTEXT_PROPERTY_NAME, instance), MongodState.READY);
+            getLog().info(name + " successfully started in " + processMillis + " ms, accepting connections after " + readyMillis + " ms.");
+        } catch (ExecutionException e) {
+            throw new MojoExecutionException("Unable to start " + name + ".", e.getCause());
+        } catch (TimeoutException e) {
+            mongoThread.interrupt();
+            throw new MojoExecutionException(name + " did not start within " + startupTimeout + " ms.", e);
         } catch (InterruptedException e) {
-            getLog().info("Mongod got interrupted.");
+            Thread.currentThread().interrupt();
+            mongoThread.interrupt();
+            throw new MojoExecutionException("Interrupted while waiting for " + name + " to start.", e);
+        } catch (MongoException e) {
+            mongoThread.interrupt();
+            throw new MojoExecutionException(name + " is not accepting connections within " + startupTimeout + " ms.", e);
         }
     }
 
-    private Map<String, String> getMongodArgs() {
+    private void ping(ServerAddress address, long timeoutMillis) {
+        try (MongoClientRegistry.Lease lease = acquireClient(address.getHost(), address.getPort())) {
+            lease.getClient().getDatabase("admin")
+                  .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                  .runCommand(new Document("ping", 1));
+        }
+    }
+
+    private String getSnapshotFingerprint() throws MojoExecutionException {
+        try {
+            return DataSnapshot.fingerprint(getVersion().asInDownloadPath(), project, snapshotInputs);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to restore the data snapshot", e);
+        }
+    }
+
+    /**
+     * @return the data directory to use, a new temporary one deleted by
+     *         {@link StopMojo} if none was configured.
+     */
+    private Path restoreSnapshot(String fingerprint, Path dataDirectory, int instance) throws MojoExecutionException {
+        if (dataDirectory == null) {
+            dataDirectory = createEphemeralDirectory(Paths.get(System.getProperty("java.io.tmpdir")));
+        }
+
+        try {
+            DataSnapshot dataSnapshot = new DataSnapshot(fingerprint, snapshotDirectory.toPath(), dataDirectory);
+            if (instance == 0) {
+                // the seeding goals and mongo-snapshot work with the first instance
+                getPluginContext().put(SNAPSHOT_CONTEXT_PROPERTY_NAME, dataSnapshot);
+            }
+
+            if (!dataSnapshot.exists()) {
+                getLog().info("No data snapshot " + dataSnapshot.getFingerprint() + " found, it will be taken by the mongo-snapshot goal.");
+            } else if (isNotEmpty(dataDirectory)) {
+                getLog().warn("Not restoring data snapshot " + dataSnapshot.getFingerprint() + ", " + dataDirectory + " is not empty.");
+            } else {
+                long start = System.nanoTime();
+                dataSnapshot.restore();
+                getLog().info("Data snapshot " + dataSnapshot.getFingerprint() + " restored in "
+                      + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, seeding goals will be skipped.");
+            }
+
+            return dataDirectory;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to restore the data snapshot", e);
+        }
+    }
+
+    private static boolean isNotEmpty(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.findAny().isPresent();
+        }
+    }
+
+    private Map<String, String> getMongodArgs() throws MojoExecutionException {
         Map<String, String> mongodArgs = new HashMap<>();
 
         if (System.getProperty("os.name").toLowerCase().indexOf("win") == -1 
             && this.unixSocketPrefix != null && !this.unixSocketPrefix.isEmpty()) {
-            mongodArgs.put("unixSocketPrefix", this.unixSocketPrefix);
+            mongodArgs.put("--unixSocketPrefix", this.unixSocketPrefix);
+        }
+        if (logReport) {
+            mongodArgs.put("--slowms", String.valueOf(slowms));
+        }
+        if (inMemory) {
+            mongodArgs.put("--inMemorySizeGB", EPHEMERAL_CACHE_SIZE_GB);
+        } else if (wiredTigerCacheSizeGB != null) {
+            mongodArgs.put("--wiredTigerCacheSizeGB", String.valueOf(wiredTigerCacheSizeGB));
+        } else if (getProfile() == Profile.EPHEMERAL && isWiredTiger()) {
+            mongodArgs.put("--wiredTigerCacheSizeGB", EPHEMERAL_CACHE_SIZE_GB);
+        }
+        if (maxConns != null) {
+            mongodArgs.put("--maxConns", String.valueOf(maxConns));
+        }
+        if (this.mongodArgs != null) {
+            this.mongodArgs.forEach((name, value) -> mongodArgs.put(name.startsWith("-") ? name : "--" + name, value == null ? "" : value));
         }
 
         return mongodArgs;
     }
 
-    private ProcessOutput getOutputConfig() throws MojoFailureException {
+    /**
+     * @return whether mongod runs WiredTiger, the default engine when none is configured.
+     */
+    private boolean isWiredTiger() {
+        return !inMemory && (storageEngine == null || "wiredTiger".equals(storageEngine));
+    }
+
+    private static boolean isAtLeast(String version, int major, int minor) {
+        String[] parts = version.split("[.-]");
+        int actualMajor = Integer.parseInt(parts[0]);
+        int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+    }
+
+    private Map<String, String> getMongodParams() throws MojoExecutionException {
+        Map<String, String> params = new HashMap<>();
+        if (getProfile() == Profile.EPHEMERAL) {
+            params.put("diagnosticDataCollectionEnabled", "false");
+        }
+        if (setParameters != null) {
+            params.putAll(setParameters);
+        }
+        return params;
+    }
+
+    /**
+     * Checks the resource options against the version and storage engine
+     * before anything is started.
+     */
+    private void validateMongodOptions() throws MojoExecutionException {
+        String version = getVersion().asInDownloadPath();
+
+        if (wiredTigerCacheSizeGB != null) {
+            String engine = inMemory ? "inMemory" : storageEngine;
+            if (engine != null && !"wiredTiger".equals(engine)) {
+                throw new MojoExecutionException("wiredTigerCacheSizeGB can't be used with the " + engine + " storage engine");
+            }
+            if (!isAtLeast(version, 3, 0)) {
+                throw new MojoExecutionException("wiredTigerCacheSizeGB needs MongoDB 3.0 or newer, not " + version);
+            }
+            double minimum = isAtLeast(version, 3, 4) ? 0.25 : 1;
+            if (wiredTigerCacheSizeGB < minimum || wiredTigerCacheSizeGB > 10000) {
+                throw new MojoExecutionException("wiredTigerCacheSizeGB has to be between " + minimum + " and 10000 for MongoDB " + version
+                      + ", not " + wiredTigerCacheSizeGB);
+            }
+            if (!isAtLeast(version, 3, 4) && wiredTigerCacheSizeGB % 1 != 0) {
+                throw new MojoExecutionException("wiredTigerCacheSizeGB has to be a whole number for MongoDB " + version);
+            }
+        }
 
-        Loggers.LoggingStyle loggingStyle = Loggers.LoggingStyle.valueOf(logging.toUpperCase());
+        if (maxConns != null && maxConns < 1) {
+            throw new MojoExecutionException("maxConns has to be positive, not " + maxConns);
+        }
+
+        if (setParameters != null) {
+            for (Map.Entry<String, String> parameter : setParameters.entrySet()) {
+                if (parameter.getKey().isBlank() || parameter.getValue() == null || parameter.getValue().isBlank()) {
+                    throw new MojoExecutionException("setParameters needs a name and a value, got " + parameter);
+                }
+            }
+        }
+
+        if (mongodArgs != null) {
+            for (String name : mongodArgs.keySet()) {
+                String option = name.replaceFirst("^-+", "");
+                String parameter = MANAGED_ARGS.get(option);
+                if (parameter != null) {
+                    throw new MojoExecutionException("mongodArgs can't contain " + option + ", use the " + parameter + " parameter");
+                }
+            }
+        }
+    }
+
+    private ProcessOutput getOutputConfig(int instance) throws MojoExecutionException, MojoFailureException {
+        ProcessOutput output = getLoggingOutput(instance);
+        if (logReport) {
+            MongodLogAnalyzer analyzer = registerLog(new MongodLogAnalyzer(Paths.get(withInstance(logReportFile, instance))));
+            output = Loggers.analyzed(output, analyzer);
+        }
+        return output;
+    }
+
+    private ProcessOutput getLoggingOutput(int instance) throws MojoExecutionException, MojoFailureException {
+
+        Loggers.LoggingStyle loggingStyle = valueOf(Loggers.LoggingStyle.class, "logging", logging);
 
         switch (loggingStyle) {
             case CONSOLE:
                 return Loggers.console();
             case FILE:
-                return Loggers.file(logFile, logFileEncoding);
+                return Loggers.file(registerLog(new FileOutputStreamProcessor(withInstance(logFile, instance), logFileEncoding, getLogRotation())));
+            case ASYNC:
+                try {
+                    return Loggers.async(registerLog(new AsyncFileOutputStreamProcessor(withInstance(logFile, instance), logFileEncoding, getLogRotation(),
+                          logQueueSize, valueOf(AsyncFileOutputStreamProcessor.OverflowPolicy.class, "logOverflow", logOverflow), logFlushInterval)));
+                } catch (IOException e) {
+                    throw new MojoFailureException("Unable to open log file " + withInstance(logFile, instance), e);
+                }
             case NONE:
                 return Loggers.none();
             default:
@@ -247,36 +1126,122 @@ public class StartMojo extends AbstractEmbeddedMongoMojo {
 
     }
 
-    private Transition<DistributionBaseUrl> getDownloadPath() {
-        return Start.to(DistributionBaseUrl.class)
-              .initializedWith(DistributionBaseUrl.of(downloadPath));
+    /**
+     * @return whether the mongod binary, an enterprise one, has the inMemory storage engine.
+     */
+    private boolean supportsInMemory(Path executable) {
+        try {
+            Process help = new ProcessBuilder(executable.toString(), "--help").redirectErrorStream(true).start();
+            String options = new String(help.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            help.waitFor(10, TimeUnit.SECONDS);
+            return options.contains("--inMemorySizeGB");
+        } catch (IOException e) {
+            getLog().debug("Unable to list the options of " + executable, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
-    public DownloadPackage getProxyFactory(Settings settings) {
-        URI downloadUri = URI.create(downloadPath);
-        final String downloadHost = downloadUri.getHost();
-        final String downloadProto = downloadUri.getScheme();
-        ImmutableDownloadPackage dp = DownloadPackage.withDefaults();
+    /**
+     * @return {@code /dev/shm} where it is available, otherwise the temporary directory.
+     */
+    private static Path getEphemeralRoot() {
+        Path shm = Paths.get("/dev/shm");
+        return Files.isDirectory(shm) && Files.isWritable(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+    }
 
-        if (settings.getProxies() != null) {
-            for (org.apache.maven.settings.Proxy proxy : settings.getProxies()) {
-                if (proxy.isActive()
-                      && equalsIgnoreCase(proxy.getProtocol(), downloadProto)
-                      && !contains(proxy.getNonProxyHosts(), downloadHost)) {
-                    dp.withDownloadConfig(DownloadConfig.defaults().withProxyFactory(
-                        ProxyFactory.of(proxy.getHost(), proxy.getPort())));
+    /**
+     * Creates a data directory in {@code root} the {@link StopMojo} deletes.
+     */
+    @SuppressWarnings("unchecked")
+    private Path createEphemeralDirectory(Path root) throws MojoExecutionException {
+        if (!getPluginContext().containsKey(EPHEMERAL_DIRECTORIES_CONTEXT_PROPERTY_NAME)) {
+            deleteLeftoverDirectories(root);
+        }
+
+        try {
+            Path directory = Files.createTempDirectory(root, "embedmongo-data");
+            ((List<Path>) getPluginContext().computeIfAbsent(EPHEMERAL_DIRECTORIES_CONTEXT_PROPERTY_NAME, key -> new ArrayList<Path>())).add(directory);
+            return directory;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to create a data directory in " + root, e);
+        }
+    }
+
+    /**
+     * Deletes in the background the data directories whose deletion by
+     * {@link StopMojo} did not finish before its JVM exited.
+     */
+    private void deleteLeftoverDirectories(Path root) {
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, "embedmongo-data*" + DELETED_SUFFIX)) {
+            directories.forEach(leftovers::add);
+        } catch (IOException e) {
+            getLog().debug("Unable to list the data directories left in " + root, e);
+        }
+
+        if (!leftovers.isEmpty()) {
+            Thread.ofVirtual().name("embedmongo-leftovers").start(() -> {
+                for (Path directory : leftovers) {
+                    try {
+                        DataSnapshot.delete(directory);
+                    } catch (IOException e) {
+                        getLog().debug("Unable to delete the data directory " + directory, e);
+                    }
                 }
-            }
+            });
         }
+    }
+
+    private Profile getProfile() throws MojoExecutionException {
+        return valueOf(Profile.class, "profile", profile);
+    }
+
+    /**
+     * Keeps the log sink in the plugin context, so that {@link StopMojo} closes it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Closeable> T registerLog(T log) {
+        ((List<Closeable>) getPluginContext().computeIfAbsent(LOGS_CONTEXT_PROPERTY_NAME, key -> new ArrayList<Closeable>())).add(log);
+        return log;
+    }
 
-        return dp;
+    private LogRotation getLogRotation() {
+        return new LogRotation(logMaxSize, logRotationInterval, logMaxFiles, logCompress);
     }
 
-    private String getDataDirectory() {
-        if (databaseDirectory != null) {
-            return databaseDirectory.getAbsolutePath();
+    /**
+     * @return the file for the first instance, with the instance number
+     *         inserted before the extension for the others.
+     */
+    private static String withInstance(String file, int instance) {
+        if (instance == 0) {
+            return file;
+        }
+        int extension = file.lastIndexOf('.');
+        if (extension <= Math.max(file.lastIndexOf('/'), file.lastIndexOf(File.separatorChar))) {
+            return file + "-" + instance;
+        }
+        return file.substring(0, extension) + "-" + instance + file.substring(extension);
+    }
+
+    /**
+     * @return the configured data directory of the instance, a new one in
+     *         memory backed storage for the ephemeral profile, otherwise
+     *         {@code null} for a temporary one created by flapdoodle.
+     */
+    private Path getDataDirectory(int instance, Profile profile) throws MojoExecutionException {
+        if (databaseDirectory == null) {
+            if (profile != Profile.EPHEMERAL || inMemory) {
+                return null;
+            }
+            return createEphemeralDirectory(getEphemeralRoot());
+        } else if (instances == 1) {
+            return databaseDirectory.toPath();
         } else {
-            return null;
+            return databaseDirectory.toPath().resolve("instance-" + instance);
         }
     }
 
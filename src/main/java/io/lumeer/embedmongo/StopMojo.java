@@ -18,14 +18,38 @@
  */
 package io.lumeer.embedmongo;
 
+import io.lumeer.embedmongo.log.MongodLogAnalyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
 import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
 import de.flapdoodle.reverse.TransitionWalker;
 
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 
 /**
  * When invoked, this goal stops an instance of mojo that was started by this
@@ -34,16 +58,261 @@ import org.apache.maven.plugins.annotations.Mojo;
 @Mojo(name="stop", defaultPhase = LifecyclePhase.POST_INTEGRATION_TEST)
 public class StopMojo extends AbstractEmbeddedMongoMojo {
 
+    /**
+     * Milliseconds mongod gets to exit after the {@code shutdown} command
+     * before it is sent SIGTERM.
+     */
+    @Parameter(property = "embedmongo.shutdownTimeout", defaultValue = "10000")
+    private long shutdownTimeout = 10000;
+
+    /**
+     * Milliseconds mongod gets to exit after SIGTERM before it is killed.
+     */
+    @Parameter(property = "embedmongo.terminateTimeout", defaultValue = "5000")
+    private long terminateTimeout = 5000;
+
+    public StopMojo() {
+    }
+
+    StopMojo(File distributionDirectory) {
+        super(0, null, distributionDirectory);
+    }
+
     @Override
     public void executeStart() throws MojoExecutionException, MojoFailureException {
-        TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) getPluginContext().get(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME);
+        // the shutdown command goes through the shared clients, they are closed afterwards
+        try {
+            stopServer();
+        } finally {
+            if (getPluginContext().remove(StartMojo.CLIENTS_CONTEXT_PROPERTY_NAME) instanceof MongoClientRegistry clients) {
+                if (clients.getReferences() > 0) {
+                    getLog().warn(clients.getReferences() + " MongoDB client lease(s) were not released");
+                }
+                clients.close();
+            }
+        }
+    }
 
-        System.out.printf("@@@@@@@@@@@@@@@@@@@ žádost o zastavení");
+    private void stopServer() throws MojoFailureException {
+        if (!isSessionScope()) {
+            stop(getPluginContext());
+            return;
+        }
 
-        if (mongod != null && mongod.current() != null && mongod.current().isAlive()) {
-            mongod.current().stop();
-        } else {
+        Map<Object, Object> server = SessionServers.get(getSessionKey());
+        if (server == null) {
+            stop(getPluginContext());
+            return;
+        }
+
+        int users = SessionServers.release(getSessionKey());
+        if (users > 0) {
+            getLog().info("Leaving mongod running for " + users + " other module(s) of the build.");
+            return;
+        }
+        stop(server);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stop(Map<Object, Object> context) throws MojoFailureException {
+        int instances = (Integer) context.getOrDefault(StartMojo.INSTANCES_CONTEXT_PROPERTY_NAME, 1);
+
+        if (context.remove(StartMojo.DAEMON_CONTEXT_PROPERTY_NAME) instanceof Closeable daemon) {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                getLog().warn("Unable to release the reused mongod", e);
+            }
+            releasePortReservations(context);
+            getLog().info("Leaving the reused mongod running for the next build.");
+            return;
+        }
+
+        List<Integer> crashed = new ArrayList<>();
+        List<Integer> running = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) context.get(StartMojo.instanceKey(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME, i));
+            String stateKey = StartMojo.instanceKey(StartMojo.MONGOD_STATE_CONTEXT_PROPERTY_NAME, i);
+
+            if (context.get(stateKey) == MongodState.CRASHED) {
+                crashed.add(i);
+            } else if (mongod != null && mongod.current() != null && mongod.current().isAlive()) {
+                context.put(stateKey, MongodState.STOPPED);
+                running.add(i);
+            }
+        }
+
+        final long stopNanos = System.nanoTime();
+        // the data of the ephemeral profile is thrown away, a clean shutdown gains nothing
+        final boolean kill = context.get(StartMojo.PROFILE_CONTEXT_PROPERTY_NAME) == StartMojo.Profile.EPHEMERAL;
+
+        // stop the instances concurrently, each one takes a while to shut down
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i : running) {
+                TransitionWalker.ReachedState<RunningMongodProcess> mongod = (TransitionWalker.ReachedState<RunningMongodProcess>) context.get(StartMojo.instanceKey(StartMojo.MONGOD_CONTEXT_PROPERTY_NAME, i));
+                Thread supervisor = (Thread) context.get(StartMojo.instanceKey(StartMojo.SUPERVISOR_CONTEXT_PROPERTY_NAME, i));
+                String name = instances == 1 ? "Mongod" : "Mongod #" + i;
+                executor.execute(() -> getLog().info(name + " " + stopInstance(mongod.current(), supervisor, kill) + "."));
+            }
+        }
+
+        deleteEphemeralDirectories(context);
+        releasePortReservations(context);
+
+        if (context.remove(StartMojo.PROFILE_CONTEXT_PROPERTY_NAME) instanceof StartMojo.Profile profile && !running.isEmpty()) {
+            long stopMillis = elapsedMillis(stopNanos);
+            getLog().info("Stopped " + running.size() + " instance(s) with the " + profile.name().toLowerCase() + " profile in " + stopMillis + " ms"
+                  + new ProfileTimings(getDistributionCache().getDirectory()).record(profile, ProfileTimings.STOP, stopMillis) + ".");
+        }
+
+        // after the processes are gone, so that their last output is written too
+        if (context.remove(StartMojo.LOGS_CONTEXT_PROPERTY_NAME) instanceof List<?> logs) {
+            for (Object log : logs) {
+                try {
+                    ((Closeable) log).close();
+                    if (log instanceof MongodLogAnalyzer analyzer) {
+                        getLog().info("Mongod log report written to " + analyzer.getReport() + ": " + analyzer.getSummary());
+                    }
+                } catch (IOException e) {
+                    getLog().warn("Unable to write the mongod log: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        if (!crashed.isEmpty()) {
+            throw new MojoFailureException(instances == 1
+                  ? "Mongod exited unexpectedly before embedmongo:stop was called"
+                  : "Mongod instance(s) " + crashed + " exited unexpectedly before embedmongo:stop was called");
+        }
+        if (running.isEmpty()) {
             throw new MojoFailureException("No mongod process found, it appears embedmongo:start was not called");
         }
     }
+
+    /**
+     * Stops an instance within {@code shutdownTimeout} and twice
+     * {@code terminateTimeout}: the {@code shutdown} command first, then
+     * SIGTERM and finally SIGKILL, or SIGKILL right away with {@code kill}.
+     *
+     * @return the steps it took, for the log.
+     */
+    private String stopInstance(RunningMongodProcess process, Thread supervisor, boolean kill) {
+        final long start = System.nanoTime();
+        ServerAddress address = process.getServerAddress();
+        Optional<ProcessHandle> handle = MongodSupervisor.findProcess(address.getPort());
+
+        StringBuilder steps = new StringBuilder();
+        if (handle.isEmpty()) {
+            // nothing to signal without the process, so flapdoodle only gets the same budget
+            Thread stop = Thread.ofVirtual().name("mongod-stop-" + address.getPort()).start(process::stop);
+            try {
+                if (stop.join(Duration.ofMillis(shutdownTimeout + 2 * terminateTimeout))) {
+                    steps.append("stopped by flapdoodle in ").append(elapsedMillis(start)).append(" ms");
+                } else {
+                    steps.append("not stopped by flapdoodle after ").append(elapsedMillis(start)).append(" ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                steps.append("stop interrupted after ").append(elapsedMillis(start)).append(" ms");
+            }
+        } else {
+            // before the process exits, when the supervisor closes it flapdoodle must not send another shutdown
+            process.shutDownCommandAlreadyExecuted();
+            if (kill) {
+                steps.append("killed");
+                handle.get().destroyForcibly();
+            } else {
+                steps.append("sent the shutdown command");
+                sendShutdown(address, start);
+                if (!awaitExit(handle.get(), shutdownTimeout)) {
+                    steps.append(", SIGTERM after ").append(elapsedMillis(start)).append(" ms");
+                    handle.get().destroy();
+                }
+            }
+            if (!awaitExit(handle.get(), terminateTimeout)) {
+                steps.append(", SIGKILL after ").append(elapsedMillis(start)).append(" ms");
+                handle.get().destroyForcibly();
+                awaitExit(handle.get(), terminateTimeout);
+            }
+            steps.append(", exited after ").append(elapsedMillis(start)).append(" ms");
+        }
+
+        // the supervisor closes the reached state, which removes the temporary files of flapdoodle
+        if (supervisor != null) {
+            try {
+                supervisor.join(terminateTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (supervisor.isAlive()) {
+                supervisor.interrupt();
+                steps.append(", cleanup interrupted");
+            } else {
+                steps.append(", cleaned up after ").append(elapsedMillis(start)).append(" ms");
+            }
+        }
+        return steps.toString();
+    }
+
+    /**
+     * Sends the {@code shutdown} command through the shared client, bounded
+     * by what is left of {@code shutdownTimeout}.
+     */
+    private void sendShutdown(ServerAddress address, long start) {
+        long remaining = shutdownTimeout - elapsedMillis(start);
+        if (remaining <= 0) {
+            return;
+        }
+
+        try (MongoClientRegistry.Lease lease = acquireClient(address.getHost(), address.getPort())) {
+            lease.getClient().getDatabase("admin")
+                  .withTimeout(remaining, TimeUnit.MILLISECONDS)
+                  .runCommand(new Document("shutdown", 1).append("force", true));
+        } catch (MongoException e) {
+            // mongod closes the connection before it answers
+            getLog().debug("Shutdown command ended with " + e.getMessage());
+        }
+    }
+
+    private static boolean awaitExit(ProcessHandle process, long timeoutMillis) {
+        try {
+            process.onExit().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return !process.isAlive();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return !process.isAlive();
+        }
+    }
+
+    /**
+     * Renames the data directories of the ephemeral profile and deletes them
+     * in the background, {@link StartMojo} deletes what a build left behind.
+     */
+    private void deleteEphemeralDirectories(Map<Object, Object> context) {
+        if (context.remove(StartMojo.EPHEMERAL_DIRECTORIES_CONTEXT_PROPERTY_NAME) instanceof List<?> directories) {
+            List<Path> deleted = new ArrayList<>();
+            for (Object directory : directories) {
+                Path path = (Path) directory;
+                try {
+                    deleted.add(Files.move(path, path.resolveSibling(path.getFileName() + StartMojo.DELETED_SUFFIX)));
+                } catch (IOException e) {
+                    deleted.add(path);
+                }
+            }
+
+            Thread.ofPlatform().name("embedmongo-cleanup").start(() -> {
+                final long start = System.nanoTime();
+                for (Path directory : deleted) {
+                    try {
+                        DataSnapshot.delete(directory);
+                    } catch (IOException e) {
+                        getLog().warn("Unable to delete the data directory " + directory, e);
+                    }
+                }
+                getLog().debug("Deleted " + deleted.size() + " data director(ies) in " + elapsedMillis(start) + " ms");
+            });
+        }
+    }
 }
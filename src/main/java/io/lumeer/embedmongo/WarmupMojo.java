@@ -0,0 +1,45 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+
+import de.flapdoodle.embed.process.archives.ExtractedFileSet;
+
+/**
+ * When invoked, this goal downloads and extracts the configured MongoDB
+ * version into the distribution cache without starting it, so that later
+ * builds (including offline ones) start from already extracted binaries.
+ */
+@Mojo(name = "mongo-warmup", requiresProject = false)
+public class WarmupMojo extends AbstractEmbeddedMongoMojo {
+
+    @Override
+    protected void onSkip() {
+        getLog().debug("skip=true, not warming up the embedmongo distribution cache");
+    }
+
+    @Override
+    public void executeStart() throws MojoExecutionException, MojoFailureException {
+        ExtractedFileSet extracted = prepareDistribution(mongodBuilder().build().transitions(getVersion()));
+        getLog().info("mongod executable: " + extracted.executable());
+    }
+}
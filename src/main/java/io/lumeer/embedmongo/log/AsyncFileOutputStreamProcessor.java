@@ -0,0 +1,196 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.flapdoodle.embed.process.io.StreamProcessor;
+
+/**
+ * Writes the mongod output to a file from a background thread, so that the
+ * threads reading the process output only enqueue it. Blocks are written in
+ * batches through a {@link RotatingLogWriter} that is flushed once a batch
+ * worth of blocks is pending or the flush interval passed, and on
+ * {@link #close()}.
+ */
+public class AsyncFileOutputStreamProcessor implements StreamProcessor, Closeable {
+
+    /**
+     * What happens to output produced while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** the reading thread waits for the writer, mongod may stall on a full pipe */
+        BLOCK,
+        /** the output is dropped and counted, the count is written on close */
+        DROP
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    // marks the end of the queue, compared by identity
+    private static final String END = new String();
+
+    private final BlockingQueue<String> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long flushIntervalNanos;
+    private final Writer writer;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    public AsyncFileOutputStreamProcessor(String logFile, String encoding, LogRotation rotation, int queueSize, OverflowPolicy overflowPolicy, long flushIntervalMillis) throws IOException {
+        if (logFile == null || logFile.trim().length() == 0) {
+            throw new IllegalArgumentException("no logFile given");
+        }
+        if (encoding == null || encoding.trim().length() == 0) {
+            throw new IllegalArgumentException("no encoding given");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        if (flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        }
+
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.overflowPolicy = overflowPolicy;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.writer = new RotatingLogWriter(Paths.get(logFile), Charset.forName(encoding), rotation);
+        this.thread = new Thread(this::drain, "embedmongo-log-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void process(String block) {
+        if (closed || failure != null) {
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!queue.offer(block)) {
+                dropped.incrementAndGet();
+            }
+        } else {
+            try {
+                // gives up once closed, nothing takes from the queue anymore
+                while (!queue.offer(block, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed || failure != null) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void onProcessed() {
+        process("\n");
+    }
+
+    /**
+     * @return number of blocks dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        long lastFlush = System.nanoTime();
+        int unflushed = 0;
+
+        try {
+            while (true) {
+                long timeout = unflushed == 0 ? flushIntervalNanos : lastFlush + flushIntervalNanos - System.nanoTime();
+                String block = queue.poll(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+                if (block != null) {
+                    batch.add(block);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (String b : batch) {
+                        if (b == END) {
+                            writer.flush();
+                            return;
+                        }
+                        writer.write(b);
+                    }
+                    unflushed += batch.size();
+                    batch.clear();
+                }
+
+                if (unflushed >= BATCH_SIZE || unflushed > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+                    writer.flush();
+                    lastFlush = System.nanoTime();
+                    unflushed = 0;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the queued output and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            while (failure == null && thread.isAlive() && !queue.offer(END, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                // the writer is still draining a full queue
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try (writer) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (dropped.get() > 0) {
+                writer.write("[embedmongo] " + dropped.get() + " output block(s) dropped, the log queue was full\n");
+            }
+        }
+    }
+}
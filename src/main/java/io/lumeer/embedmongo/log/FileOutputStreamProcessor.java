@@ -18,22 +18,31 @@
  */
 package io.lumeer.embedmongo.log;
 
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 
 import de.flapdoodle.embed.process.io.StreamProcessor;
 
-public class FileOutputStreamProcessor implements StreamProcessor {
+public class FileOutputStreamProcessor implements StreamProcessor, Closeable {
 
-    private static OutputStreamWriter stream;
+    private Writer stream;
 
     private String logFile;
     private String encoding;
+    private final LogRotation rotation;
 
     public FileOutputStreamProcessor(String logFile, String encoding) {
+        this(logFile, encoding, LogRotation.none());
+    }
+
+    public FileOutputStreamProcessor(String logFile, String encoding, LogRotation rotation) {
         setLogFile(logFile);
         setEncoding(encoding);
+        this.rotation = rotation;
     }
 
     @Override
@@ -41,14 +50,14 @@ public class FileOutputStreamProcessor implements StreamProcessor {
         try {
 
             if (stream == null) {
-                stream = new OutputStreamWriter(new FileOutputStream(logFile), encoding);
+                stream = new RotatingLogWriter(Paths.get(logFile), Charset.forName(encoding), rotation);
             }
 
             stream.write(block);
             stream.flush();
 
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -57,6 +66,14 @@ public class FileOutputStreamProcessor implements StreamProcessor {
         process("\n");
     }
 
+    @Override
+    public synchronized void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
     private void setLogFile(String logFile) {
         if (logFile == null || logFile.trim().length() == 0) {
             throw new IllegalArgumentException("no logFile given");
@@ -0,0 +1,69 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo.log;
+
+/**
+ * When a log file is moved aside and how many of the moved files are kept.
+ */
+public class LogRotation {
+
+    private static final LogRotation NONE = new LogRotation(0, 0, 0, false);
+
+    private final long maxSize;
+    private final long intervalMillis;
+    private final int maxFiles;
+    private final boolean compress;
+
+    /**
+     * @param maxSize rotate once the file has about this many bytes, 0 for no limit
+     * @param intervalMillis rotate once the file is this old, 0 for no limit
+     * @param maxFiles number of rotated files to keep
+     * @param compress whether rotated files are compressed with gzip
+     */
+    public LogRotation(long maxSize, long intervalMillis, int maxFiles, boolean compress) {
+        this.maxSize = maxSize;
+        this.intervalMillis = intervalMillis;
+        this.maxFiles = maxFiles;
+        this.compress = compress;
+    }
+
+    public static LogRotation none() {
+        return NONE;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 || intervalMillis > 0;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+}
@@ -20,16 +20,27 @@ package io.lumeer.embedmongo.log;
 
 import de.flapdoodle.embed.process.io.NamedOutputStreamProcessor;
 import de.flapdoodle.embed.process.io.ProcessOutput;
+import de.flapdoodle.embed.process.io.StreamProcessor;
 
 public class Loggers {
 
     public enum LoggingStyle {
-        FILE, CONSOLE, NONE
+        FILE, ASYNC, CONSOLE, NONE
     }
 
     public static ProcessOutput file(String logFile, String encoding) {
-        FileOutputStreamProcessor file = new FileOutputStreamProcessor(logFile, encoding);
+        return file(new FileOutputStreamProcessor(logFile, encoding));
+    }
+
+    public static ProcessOutput file(FileOutputStreamProcessor file) {
+        return toFile(file);
+    }
 
+    public static ProcessOutput async(AsyncFileOutputStreamProcessor file) {
+        return toFile(file);
+    }
+
+    private static ProcessOutput toFile(StreamProcessor file) {
         return ProcessOutput.builder()
               .output(new NamedOutputStreamProcessor("[mongod output]", file))
               .error(new NamedOutputStreamProcessor("[mongod error]", file))
@@ -37,6 +48,33 @@ public class Loggers {
               .build();
     }
 
+    /**
+     * @return the given output that also passes the mongod output to the analyzer.
+     */
+    public static ProcessOutput analyzed(ProcessOutput output, MongodLogAnalyzer analyzer) {
+        return ProcessOutput.builder()
+              .output(tee(output.output(), analyzer))
+              .error(output.error())
+              .commands(output.commands())
+              .build();
+    }
+
+    private static StreamProcessor tee(StreamProcessor first, StreamProcessor second) {
+        return new StreamProcessor() {
+            @Override
+            public void process(String block) {
+                first.process(block);
+                second.process(block);
+            }
+
+            @Override
+            public void onProcessed() {
+                first.onProcessed();
+                second.onProcessed();
+            }
+        };
+    }
+
     public static ProcessOutput console() {
         return ProcessOutput.namedConsole("[mongod]");
     }
@@ -0,0 +1,272 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+
+import de.flapdoodle.embed.process.io.StreamProcessor;
+
+/**
+ * Reads the structured log of mongod 4.4 and newer line by line while it
+ * runs and collects slow operations, collection scans, lock waits and
+ * connection counts. On {@link #close()} they are written as a JSON and an
+ * HTML report, the lines themselves are not kept.
+ */
+public class MongodLogAnalyzer implements StreamProcessor, Closeable {
+
+    private static final int SLOW_QUERY = 51803;
+    private static final int CONNECTION_ACCEPTED = 22943;
+    private static final int CONNECTION_ENDED = 22944;
+
+    private static final int MAX_SLOW_OPERATIONS = 100;
+    private static final int MAX_COMMAND_LENGTH = 1000;
+
+    private final Path jsonReport;
+    private final Path htmlReport;
+    private final StringBuilder line = new StringBuilder();
+
+    private final List<Document> slowOperations = new ArrayList<>();
+    private final Map<String, Integer> collectionScans = new TreeMap<>();
+    private long slowOperationCount;
+    private long lockWaitMicros;
+    private long connectionsAccepted;
+    private int maxConnections;
+    private long structuredLines;
+
+    /**
+     * @param report the JSON report file, the HTML one gets the same name with the {@code .html} extension
+     */
+    public MongodLogAnalyzer(Path report) {
+        this.jsonReport = report;
+        String name = report.getFileName().toString();
+        this.htmlReport = report.resolveSibling((name.endsWith(".json") ? name.substring(0, name.length() - 5) : name) + ".html");
+    }
+
+    @Override
+    public synchronized void process(String block) {
+        int start = 0;
+        int end;
+        while ((end = block.indexOf('\n', start)) >= 0) {
+            line.append(block, start, end);
+            analyze(line);
+            line.setLength(0);
+            start = end + 1;
+        }
+        line.append(block, start, block.length());
+    }
+
+    @Override
+    public synchronized void onProcessed() {
+        analyze(line);
+        line.setLength(0);
+    }
+
+    private void analyze(CharSequence text) {
+        // cheap checks first, only the few interesting lines are parsed
+        if (text.isEmpty() || text.charAt(0) != '{') {
+            return;
+        }
+        structuredLines++;
+
+        String entry = text.toString();
+        if (entry.contains("\"id\":" + SLOW_QUERY + ",")) {
+            Document attributes = parseAttributes(entry);
+            if (attributes != null) {
+                slowOperation(attributes);
+            }
+        } else if (entry.contains("\"id\":" + CONNECTION_ACCEPTED + ",") || entry.contains("\"id\":" + CONNECTION_ENDED + ",")) {
+            Document attributes = parseAttributes(entry);
+            if (attributes != null && attributes.get("connectionCount") instanceof Number count) {
+                maxConnections = Math.max(maxConnections, count.intValue());
+                if (entry.contains("\"id\":" + CONNECTION_ACCEPTED + ",")) {
+                    connectionsAccepted++;
+                }
+            }
+        }
+    }
+
+    private static Document parseAttributes(String entry) {
+        try {
+            return Document.parse(entry).get("attr", Document.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private void slowOperation(Document attributes) {
+        slowOperationCount++;
+
+        String namespace = attributes.getString("ns");
+        String planSummary = attributes.getString("planSummary");
+        long waitMicros = getLockWaitMicros(attributes.get("locks", Document.class));
+        lockWaitMicros += waitMicros;
+
+        if (planSummary != null && planSummary.startsWith("COLLSCAN") && namespace != null) {
+            collectionScans.merge(namespace, 1, Integer::sum);
+        }
+
+        Object command = attributes.get("command");
+        String commandJson = command instanceof Document document ? document.toJson() : String.valueOf(command);
+        if (commandJson.length() > MAX_COMMAND_LENGTH) {
+            commandJson = commandJson.substring(0, MAX_COMMAND_LENGTH) + "...";
+        }
+
+        slowOperations.add(new Document("ns", namespace)
+              .append("type", attributes.getString("type"))
+              .append("durationMillis", attributes.get("durationMillis"))
+              .append("planSummary", planSummary)
+              .append("docsExamined", attributes.get("docsExamined"))
+              .append("keysExamined", attributes.get("keysExamined"))
+              .append("nreturned", attributes.get("nreturned"))
+              .append("lockWaitMicros", waitMicros)
+              .append("command", commandJson));
+
+        // keep the slowest ones only
+        if (slowOperations.size() > MAX_SLOW_OPERATIONS) {
+            slowOperations.sort(Comparator.comparingLong(MongodLogAnalyzer::getDuration).reversed());
+            slowOperations.subList(MAX_SLOW_OPERATIONS, slowOperations.size()).clear();
+        }
+    }
+
+    /**
+     * Sums the {@code timeAcquiringMicros} of all lock types and modes.
+     */
+    private static long getLockWaitMicros(Document locks) {
+        long micros = 0;
+        if (locks != null) {
+            for (Object lock : locks.values()) {
+                if (lock instanceof Document type && type.get("timeAcquiringMicros") instanceof Document modes) {
+                    for (Object mode : modes.values()) {
+                        if (mode instanceof Number number) {
+                            micros += number.longValue();
+                        }
+                    }
+                }
+            }
+        }
+        return micros;
+    }
+
+    private static long getDuration(Document operation) {
+        return operation.get("durationMillis") instanceof Number duration ? duration.longValue() : 0;
+    }
+
+    public synchronized Document toDocument() {
+        List<Document> slowest = new ArrayList<>(slowOperations);
+        slowest.sort(Comparator.comparingLong(MongodLogAnalyzer::getDuration).reversed());
+
+        return new Document("structuredLines", structuredLines)
+              .append("slowOperations", slowOperationCount)
+              .append("lockWaitMicros", lockWaitMicros)
+              .append("connectionsAccepted", connectionsAccepted)
+              .append("maxConnections", maxConnections)
+              .append("collectionScans", new Document(new TreeMap<String, Object>(collectionScans)))
+              .append("slowest", slowest);
+    }
+
+    /**
+     * Writes the reports.
+     */
+    @Override
+    public void close() throws IOException {
+        Document report = toDocument();
+        Files.createDirectories(jsonReport.toAbsolutePath().getParent());
+        Files.writeString(jsonReport, report.toJson(JsonWriterSettings.builder().indent(true).build()), StandardCharsets.UTF_8);
+        Files.writeString(htmlReport, toHtml(report), StandardCharsets.UTF_8);
+    }
+
+    public synchronized String getSummary() {
+        return slowOperationCount + " slow operation(s), " + collectionScans.values().stream().mapToInt(Integer::intValue).sum()
+              + " of them collection scans, " + maxConnections + " connection(s) at most";
+    }
+
+    public Path getReport() {
+        return jsonReport;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String toHtml(Document report) {
+        StringBuilder html = new StringBuilder()
+              .append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>mongod log report</title>\n")
+              .append("<style>body{font-family:sans-serif}table{border-collapse:collapse}td,th{border:1px solid #ccc;padding:4px;text-align:left;vertical-align:top}code{font-size:smaller}</style>\n")
+              .append("</head><body>\n<h1>mongod log report</h1>\n");
+
+        if (report.get("structuredLines", 0L) == 0) {
+            html.append("<p>No structured log lines were found, they are written by mongod 4.4 and newer.</p>\n");
+        }
+
+        html.append("<table>\n");
+        row(html, "th", "Slow operations", "Lock wait (µs)", "Connections accepted", "Max. connections");
+        row(html, "td", report.get("slowOperations"), report.get("lockWaitMicros"), report.get("connectionsAccepted"), report.get("maxConnections"));
+        html.append("</table>\n");
+
+        Document collectionScans = report.get("collectionScans", Document.class);
+        html.append("<h2>Collection scans</h2>\n");
+        if (collectionScans.isEmpty()) {
+            html.append("<p>None.</p>\n");
+        } else {
+            html.append("<table>\n");
+            row(html, "th", "Namespace", "Slow collection scans");
+            collectionScans.forEach((namespace, count) -> row(html, "td", namespace, count));
+            html.append("</table>\n");
+        }
+
+        List<Document> slowest = (List<Document>) report.get("slowest");
+        html.append("<h2>Slowest operations</h2>\n");
+        if (slowest.isEmpty()) {
+            html.append("<p>None.</p>\n");
+        } else {
+            html.append("<table>\n");
+            row(html, "th", "Duration (ms)", "Namespace", "Type", "Plan", "Docs examined", "Keys examined", "Returned", "Lock wait (µs)", "Command");
+            for (Document operation : slowest) {
+                row(html, "td", operation.get("durationMillis"), operation.get("ns"), operation.get("type"), operation.get("planSummary"),
+                      operation.get("docsExamined"), operation.get("keysExamined"), operation.get("nreturned"), operation.get("lockWaitMicros"),
+                      operation.get("command"));
+            }
+            html.append("</table>\n");
+        }
+
+        return html.append("</body></html>\n").toString();
+    }
+
+    private static void row(StringBuilder html, String cell, Object... values) {
+        html.append("<tr>");
+        for (Object value : values) {
+            html.append('<').append(cell).append('>').append(escape(value == null ? "" : String.valueOf(value))).append("</").append(cell).append('>');
+        }
+        html.append("</tr>\n");
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
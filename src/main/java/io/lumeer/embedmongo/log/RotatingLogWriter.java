@@ -0,0 +1,175 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buffered writer of a log file that is moved aside according to a
+ * {@link LogRotation}. Rotated files get a timestamp suffix, are compressed
+ * and pruned by a background thread, so writing only waits for the rename.
+ * Failures of that thread are reported by {@link #close()}.
+ */
+public class RotatingLogWriter extends Writer {
+
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Charset charset;
+    private final LogRotation rotation;
+    private final ExecutorService housekeeping;
+    private final List<IOException> housekeepingFailures = new CopyOnWriteArrayList<>();
+
+    private Writer writer;
+    private long written;
+    private long openedNanos;
+
+    public RotatingLogWriter(Path file, Charset charset, LogRotation rotation) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.charset = charset;
+        this.rotation = rotation;
+        this.housekeeping = rotation.isEnabled() ? Executors.newSingleThreadExecutor(Thread.ofVirtual().name("embedmongo-log-rotation").factory()) : null;
+        open();
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), charset), BUFFER_SIZE);
+        written = 0;
+        openedNanos = System.nanoTime();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        writer.write(chars, offset, length);
+        // characters approximate the bytes well enough for log output
+        written += length;
+        if (isRotationDue()) {
+            rotate();
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        writer.write(text, offset, length);
+        written += length;
+        if (isRotationDue()) {
+            rotate();
+        }
+    }
+
+    private boolean isRotationDue() {
+        return (rotation.getMaxSize() > 0 && written >= rotation.getMaxSize())
+              || (rotation.getIntervalMillis() > 0 && System.nanoTime() - openedNanos >= TimeUnit.MILLISECONDS.toNanos(rotation.getIntervalMillis()));
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Path rotated = getRotatedFile();
+        Files.move(file, rotated);
+        open();
+
+        housekeeping.execute(() -> {
+            try {
+                if (rotation.isCompress()) {
+                    compress(rotated);
+                }
+                prune();
+            } catch (IOException e) {
+                // the log itself is fine, only the old files stay around
+                housekeepingFailures.add(e);
+            }
+        });
+    }
+
+    private Path getRotatedFile() {
+        String name = file.getFileName() + "." + LocalDateTime.now().format(SUFFIX);
+        Path rotated = file.resolveSibling(name);
+        for (int i = 1; Files.exists(rotated) || Files.exists(rotated.resolveSibling(rotated.getFileName() + ".gz")); i++) {
+            rotated = file.resolveSibling(name + "-" + i);
+        }
+        return rotated;
+    }
+
+    private static void compress(Path rotated) throws IOException {
+        Path compressed = rotated.resolveSibling(rotated.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(rotated);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed), BUFFER_SIZE)) {
+            in.transferTo(out);
+        }
+        Files.delete(rotated);
+    }
+
+    private void prune() throws IOException {
+        String prefix = file.getFileName() + ".";
+        List<Path> rotated;
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            rotated = files.filter(path -> path.getFileName().toString().startsWith(prefix))
+                  .sorted(Comparator.comparing((Path path) -> path.getFileName().toString()).reversed())
+                  .toList();
+        }
+        for (Path old : rotated.subList(Math.min(rotation.getMaxFiles(), rotated.size()), rotated.size())) {
+            Files.deleteIfExists(old);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Closes the file and waits for the rotated files to be compressed.
+     *
+     * @throws IOException also when rotated files could not be compressed or pruned.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        if (housekeeping != null) {
+            housekeeping.close();
+        }
+
+        if (!housekeepingFailures.isEmpty()) {
+            IOException failure = new IOException("Unable to compress or prune " + housekeepingFailures.size() + " rotated file(s) of " + file,
+                  housekeepingFailures.get(0));
+            housekeepingFailures.stream().skip(1).forEach(failure::addSuppressed);
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.json.JsonParseException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+
+import com.mongodb.MongoOperationTimeoutException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+
+class JsonImporterTest {
+
+    @TempDir
+    Path directory;
+
+    private MongoDatabase database;
+    private MongoCollection<BsonDocument> collection;
+    private final List<List<WriteModel<BsonDocument>>> batches = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void mockDatabase() {
+        database = mock(MongoDatabase.class);
+        collection = mock(MongoCollection.class);
+        when(database.getCollection("users", BsonDocument.class)).thenReturn(collection);
+        when(collection.withTimeout(anyLong(), any(TimeUnit.class))).thenReturn(collection);
+        // the importer reuses its batch list, so keep a copy of every write
+        doAnswer(invocation -> {
+            batches.add(new ArrayList<>(invocation.<List<WriteModel<BsonDocument>>>getArgument(0)));
+            return null;
+        }).when(collection).bulkWrite(anyList(), any(BulkWriteOptions.class));
+    }
+
+    @Test
+    void importsJsonArray() throws IOException {
+        assertEquals(2, importFile("[{name: 'a'}, {name: 'b'}]", 10, false, false));
+        assertEquals(1, batches.size());
+        assertEquals(List.of(json("{name: 'a'}"), json("{name: 'b'}")), inserted(batches.get(0)));
+    }
+
+    @Test
+    void importsNewlineDelimitedDocuments() throws IOException {
+        assertEquals(3, importFile("{name: 'a'}\n{name: 'b'}\n\n{name: 'c'}\n", 10, false, false));
+        assertEquals(List.of(json("{name: 'a'}"), json("{name: 'b'}"), json("{name: 'c'}")), inserted(batches.get(0)));
+    }
+
+    @Test
+    void importsNothingFromEmptyInput() throws IOException {
+        assertEquals(0, importFile("", 10, false, false));
+        assertEquals(0, importFile("[]", 10, false, false));
+        verify(collection, never()).bulkWrite(anyList(), any(BulkWriteOptions.class));
+    }
+
+    @Test
+    void upsertsDocumentsById() throws IOException {
+        assertEquals(2, importFile("{_id: 1, name: 'a'}\n{name: 'b'}", 10, false, true));
+
+        List<WriteModel<BsonDocument>> batch = batches.get(0);
+        ReplaceOneModel<BsonDocument> replace = assertInstanceOf(ReplaceOneModel.class, batch.get(0));
+        assertEquals(json("{_id: 1}"), replace.getFilter().toBsonDocument());
+        assertEquals(json("{_id: 1, name: 'a'}"), replace.getReplacement());
+        assertTrue(replace.getReplaceOptions().isUpsert());
+        assertEquals(json("{name: 'b'}"), assertInstanceOf(InsertOneModel.class, batch.get(1)).getDocument());
+    }
+
+    @Test
+    void insertsDocumentsWithIdWithoutUpsert() throws IOException {
+        importFile("{_id: 1, name: 'a'}", 10, false, false);
+        assertEquals(List.of(json("{_id: 1, name: 'a'}")), inserted(batches.get(0)));
+    }
+
+    @Test
+    void dropsCollectionBeforeImport() throws IOException {
+        importFile("{name: 'a'}", 10, true, false);
+
+        InOrder order = inOrder(collection);
+        order.verify(collection).drop();
+        order.verify(collection).bulkWrite(anyList(), any(BulkWriteOptions.class));
+    }
+
+    @Test
+    void keepsCollectionWithoutDrop() throws IOException {
+        importFile("{name: 'a'}", 10, false, false);
+        verify(collection, never()).drop();
+    }
+
+    @Test
+    void writesFullBatches() throws IOException {
+        assertEquals(5, importFile("[{n: 1}, {n: 2}, {n: 3}, {n: 4}, {n: 5}]", 2, false, false));
+        assertEquals(List.of(2, 2, 1), batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void writesNoEmptyBatchAtExactBoundary() throws IOException {
+        assertEquals(4, importFile("{n: 1}\n{n: 2}\n{n: 3}\n{n: 4}", 2, false, false));
+        assertEquals(List.of(2, 2), batches.stream().map(List::size).toList());
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        assertThrows(IOException.class, () -> importFile("42", 10, false, false));
+        assertThrows(IOException.class, () -> importFile("'users'", 10, false, false));
+        assertThrows(JsonParseException.class, () -> importFile("[{name: 'a'}, {name: ", 10, false, false));
+        assertThrows(JsonParseException.class, () -> importFile("{name: 'a'}\n{name: 'b'", 10, false, false));
+    }
+
+    @Test
+    void failsAfterDeadline() {
+        assertThrows(MongoOperationTimeoutException.class,
+              () -> importFile("{name: 'a'}", 10, true, false, System.nanoTime() - 1));
+        verify(collection, never()).drop();
+        verify(collection, never()).bulkWrite(anyList(), any(BulkWriteOptions.class));
+    }
+
+    @Test
+    void rejectsNonPositiveBatchSize() {
+        assertThrows(IllegalArgumentException.class, () -> new JsonImporter(database, 0));
+    }
+
+    private long importFile(String content, int batchSize, boolean drop, boolean upsert) throws IOException {
+        return importFile(content, batchSize, drop, upsert, System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+    }
+
+    private long importFile(String content, int batchSize, boolean drop, boolean upsert, long deadlineNanos) throws IOException {
+        File file = Files.writeString(Files.createTempFile(directory, "import", ".json"), content, StandardCharsets.UTF_8).toFile();
+        return new JsonImporter(database, batchSize).importFile(file, "users", drop, upsert, deadlineNanos);
+    }
+
+    private static List<BsonDocument> inserted(List<WriteModel<BsonDocument>> batch) {
+        return batch.stream().map(model -> assertInstanceOf(InsertOneModel.class, model).getDocument()).map(BsonDocument.class::cast).toList();
+    }
+
+    private static BsonDocument json(String json) {
+        return BsonDocument.parse(json);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+
+class MongoImportMojoTest {
+
+    private static final ServerAddress SERVER = ServerAddress.of(InetAddress.getLoopbackAddress(), 27017);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void countsDocumentsImportedByProcess() throws IOException {
+        ImportDataConfig importData = importOf(writeFile("users.json", "[{}]"), 10000);
+        MongoImportMojo mojo = processMojo(importData, "echo '2026-01-01T00:00:00.000+0000\t5 document(s) imported successfully. 0 document(s) failed to import.'");
+
+        ImportStatistics statistics = mojo.importData(importData, SERVER);
+
+        assertFalse(statistics.isFailed());
+        assertEquals(5, statistics.getDocuments());
+        assertEquals(4, statistics.getBytes());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void killsProcessAfterTimeout() throws IOException {
+        ImportDataConfig importData = importOf(writeFile("users.json", "[{}]"), 300);
+        MongoImportMojo mojo = processMojo(importData, "sleep 30");
+
+        long start = System.nanoTime();
+        ImportStatistics statistics = mojo.importData(importData, SERVER);
+
+        assertEquals("timed out after 300 ms", statistics.getFailure());
+        assertTrue(AbstractEmbeddedMongoMojo.elapsedMillis(start) < 10000, "mongoimport was not killed");
+        assertTrue(statistics.getElapsedMillis() >= 300);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failsOnProcessExitCode() throws IOException {
+        ImportDataConfig importData = importOf(writeFile("users.json", "[{}]"), 10000);
+        MongoImportMojo mojo = processMojo(importData, "exit 3");
+
+        ImportStatistics statistics = mojo.importData(importData, SERVER);
+
+        assertEquals("mongoimport exited with return code 3", statistics.getFailure());
+        assertEquals(-1, statistics.getDocuments());
+    }
+
+    @Test
+    void timesOutDriverImport() throws IOException {
+        ImportDataConfig importData = importOf(writeFile("users.json", "[{}]"), 300);
+        MongoImportMojo mojo = new MongoImportMojo(new ImportDataConfig[] {importData}, 0, null, null, MongoImportMojo.ImportEngine.DRIVER);
+
+        try (NetworkUtils.PortReservation port = NetworkUtils.reserveRandomPort();
+             MongoClientRegistry registry = new MongoClientRegistry(1, 1000, 60000)) {
+            // nothing listens on the reserved port, so the drop waits for a server until the deadline
+            mojo.clientLease = registry.acquire(InetAddress.getLoopbackAddress().getHostAddress(), port.getPort());
+
+            long start = System.nanoTime();
+            ImportStatistics statistics = mojo.importData(importData, SERVER);
+
+            assertEquals("timed out after 300 ms", statistics.getFailure());
+            assertTrue(AbstractEmbeddedMongoMojo.elapsedMillis(start) < 10000, "import outlived its deadline");
+        }
+    }
+
+    @Test
+    void reportsMalformedDriverImport() throws IOException {
+        ImportDataConfig importData = new ImportDataConfig("test", "users", writeFile("users.json", "42").toString(), false, true, 10000);
+        MongoImportMojo mojo = new MongoImportMojo(new ImportDataConfig[] {importData}, 0, null, null, MongoImportMojo.ImportEngine.DRIVER);
+
+        try (MongoClientRegistry registry = new MongoClientRegistry(1, 1000, 1000)) {
+            mojo.clientLease = registry.acquire(InetAddress.getLoopbackAddress().getHostAddress(), SERVER.getPort());
+
+            ImportStatistics statistics = mojo.importData(importData, SERVER);
+
+            assertTrue(statistics.getFailure().startsWith("Expected a JSON array or documents"), statistics.getFailure());
+        }
+    }
+
+    @Test
+    void writesReportAndListsFailures() throws IOException {
+        ImportDataConfig[] imports = {importOf(new File("users.json"), 1000), importOf(new File("roles.json"), 1000)};
+        MongoImportMojo mojo = new MongoImportMojo(imports, 0, null, null, MongoImportMojo.ImportEngine.DRIVER);
+        mojo.importReportFile = directory.resolve("reports/import.json").toFile();
+
+        ImportStatistics users = new ImportStatistics("users.json", "test", "users", 2048);
+        users.succeeded(20, 100);
+        ImportStatistics roles = new ImportStatistics("roles.json", "test", "roles", 1024);
+        roles.failed("timed out after 1000 ms", 1000);
+
+        MojoExecutionException e = assertThrows(MojoExecutionException.class, () -> mojo.report(List.of(users, roles)));
+        assertEquals("1 of 2 imports failed:\n - roles.json (timed out after 1000 ms)", e.getMessage());
+
+        List<Document> report = Document.parse(Files.readString(mojo.importReportFile.toPath())).getList("imports", Document.class);
+        assertEquals(2, report.size());
+        assertEquals(20, report.get(0).get("documents", Number.class).longValue());
+        assertEquals(200.0, report.get(0).get("documentsPerSecond"));
+        assertNull(report.get(0).get("failure"));
+        assertEquals(-1, report.get(1).get("documents", Number.class).longValue());
+        assertEquals("timed out after 1000 ms", report.get(1).get("failure"));
+    }
+
+    @Test
+    void reportsSuccessfulImports() throws IOException, MojoExecutionException {
+        ImportDataConfig[] imports = {importOf(new File("users.json"), 1000)};
+        MongoImportMojo mojo = new MongoImportMojo(imports, 0, null, null, MongoImportMojo.ImportEngine.DRIVER);
+        mojo.importReportFile = directory.resolve("import.json").toFile();
+
+        ImportStatistics users = new ImportStatistics("users.json", "test", "users", 2048);
+        users.succeeded(20, 100);
+        mojo.report(List.of(users));
+
+        assertTrue(Files.exists(mojo.importReportFile.toPath()));
+    }
+
+    private MongoImportMojo processMojo(ImportDataConfig importData, String script) throws IOException {
+        Path executable = writeFile("mongoimport", "#!/bin/sh\n" + script + "\n");
+        assertTrue(executable.toFile().setExecutable(true));
+
+        MongoImportMojo mojo = new MongoImportMojo(new ImportDataConfig[] {importData}, 0, null, null, MongoImportMojo.ImportEngine.PROCESS);
+        mojo.mongoImportExecutable = executable;
+        return mojo;
+    }
+
+    private static ImportDataConfig importOf(File file, long timeout) {
+        return new ImportDataConfig("test", null, file.toString(), true, true, timeout);
+    }
+
+    private ImportDataConfig importOf(Path file, long timeout) {
+        return importOf(file.toFile(), timeout);
+    }
+
+    private Path writeFile(String name, String content) throws IOException {
+        return Files.writeString(directory.resolve(name), content, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MongoScriptsMojoTest {
+
+    @Test
+    void comparesNumbersByValue() {
+        assertTrue(MongoScriptsMojo.compareScriptNames("V2__users.js", "V10__orders.js") < 0);
+        assertTrue(MongoScriptsMojo.compareScriptNames("V10__orders.js", "V2__users.js") > 0);
+        assertTrue(MongoScriptsMojo.compareScriptNames("a/9.js", "a/10.js") < 0);
+    }
+
+    @Test
+    void comparesTextLexically() {
+        assertTrue(MongoScriptsMojo.compareScriptNames("a.js", "b.js") < 0);
+        assertTrue(MongoScriptsMojo.compareScriptNames("V1__a.js", "V1__b.js") < 0);
+        assertTrue(MongoScriptsMojo.compareScriptNames("V1.js", "V1__a.js") < 0);
+    }
+
+    @Test
+    void ordersLeadingZerosConsistently() {
+        assertEquals(0, MongoScriptsMojo.compareScriptNames("V01.js", "V01.js"));
+        assertTrue(MongoScriptsMojo.compareScriptNames("V01.js", "V1.js") != 0);
+        assertEquals(-Integer.signum(MongoScriptsMojo.compareScriptNames("V1.js", "V01.js")),
+              Integer.signum(MongoScriptsMojo.compareScriptNames("V01.js", "V1.js")));
+    }
+
+    @Test
+    void handlesNumbersBeyondLong() {
+        assertTrue(MongoScriptsMojo.compareScriptNames("V99999999999999999999.js", "V100000000000000000000.js") < 0);
+    }
+
+    @Test
+    void sortsScripts() {
+        List<String> names = new ArrayList<>(List.of("V10__c.js", "V1__a.js", "V2__b.js", "init.js"));
+        Collections.shuffle(names);
+        names.sort(MongoScriptsMojo::compareScriptNames);
+        assertEquals(List.of("V1__a.js", "V2__b.js", "V10__c.js", "init.js"), names);
+    }
+
+    @Test
+    void ordersPrefixesFirst() {
+        assertTrue(MongoScriptsMojo.compareScriptNames("", "a") < 0);
+        assertTrue(MongoScriptsMojo.compareScriptNames("V1", "V12") < 0);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+class ScriptCommandsTest {
+
+    @Test
+    void translatesCommandDocuments() {
+        assertEquals(List.of(json("{ping: 1}")), ScriptCommands.translate("{ping: 1}"));
+        assertEquals(List.of(json("{ping: 1}"), json("{buildInfo: 1}")), ScriptCommands.translate("[{ping: 1}, {buildInfo: 1}]"));
+    }
+
+    @Test
+    void translatesDatabaseCalls() {
+        assertEquals(List.of(json("{ping: 1}")), ScriptCommands.translate("db.runCommand({ping: 1})"));
+        assertEquals(List.of(json("{dropDatabase: 1}")), ScriptCommands.translate("db.dropDatabase()"));
+        assertEquals(List.of(json("{create: 'logs', capped: true, size: 1024}")),
+              ScriptCommands.translate("db.createCollection('logs', {capped: true, size: 1024})"));
+        assertEquals(List.of(json("{create: 'users'}")), ScriptCommands.translate("db.createCollection(\"users\")"));
+    }
+
+    @Test
+    void translatesInserts() {
+        BsonDocument single = json("{insert: 'users', documents: [{name: 'a'}]}");
+        assertEquals(List.of(single), ScriptCommands.translate("db.users.insert({name: 'a'})"));
+        assertEquals(List.of(single), ScriptCommands.translate("db.users.insertOne({name: 'a'})"));
+        assertEquals(List.of(single), ScriptCommands.translate("db.getCollection('users').insert({name: 'a'})"));
+        assertEquals(List.of(json("{insert: 'users', documents: [{name: 'a'}, {name: 'b'}]}")),
+              ScriptCommands.translate("db.users.insertMany([{name: 'a'}, {name: 'b'}])"));
+    }
+
+    @Test
+    void translatesUpdates() {
+        assertEquals(List.of(json("{update: 'users', updates: [{q: {a: 1}, u: {$set: {b: 2}}, upsert: false, multi: false}]}")),
+              ScriptCommands.translate("db.users.update({a: 1}, {$set: {b: 2}})"));
+        assertEquals(List.of(json("{update: 'users', updates: [{q: {a: 1}, u: {$set: {b: 2}}, upsert: true, multi: true}]}")),
+              ScriptCommands.translate("db.users.update({a: 1}, {$set: {b: 2}}, {upsert: true, multi: true})"));
+        assertEquals(List.of(json("{update: 'users', updates: [{q: {a: 1}, u: {$set: {b: 2}}, upsert: false, multi: false}]}")),
+              ScriptCommands.translate("db.users.updateOne({a: 1}, {$set: {b: 2}})"));
+        assertEquals(List.of(json("{update: 'users', updates: [{q: {}, u: {$set: {b: 2}}, upsert: false, multi: true}]}")),
+              ScriptCommands.translate("db.users.updateMany({}, {$set: {b: 2}})"));
+        assertEquals(List.of(json("{update: 'users', updates: [{q: {a: 1}, u: {b: 2}, upsert: true, multi: false}]}")),
+              ScriptCommands.translate("db.users.replaceOne({a: 1}, {b: 2}, {upsert: true})"));
+    }
+
+    @Test
+    void translatesDeletes() {
+        assertEquals(List.of(json("{delete: 'users', deletes: [{q: {a: 1}, limit: 0}]}")), ScriptCommands.translate("db.users.remove({a: 1})"));
+        assertEquals(List.of(json("{delete: 'users', deletes: [{q: {a: 1}, limit: 1}]}")), ScriptCommands.translate("db.users.remove({a: 1}, true)"));
+        assertEquals(List.of(json("{delete: 'users', deletes: [{q: {a: 1}, limit: 1}]}")),
+              ScriptCommands.translate("db.users.remove({a: 1}, {justOne: true})"));
+        assertEquals(List.of(json("{delete: 'users', deletes: [{q: {a: 1}, limit: 1}]}")), ScriptCommands.translate("db.users.deleteOne({a: 1})"));
+        assertEquals(List.of(json("{delete: 'users', deletes: [{q: {}, limit: 0}]}")), ScriptCommands.translate("db.users.deleteMany({})"));
+    }
+
+    @Test
+    void translatesIndexesAndDrops() {
+        assertEquals(List.of(json("{createIndexes: 'users', indexes: [{key: {a: 1, b: -1}, name: 'a_1_b_-1'}]}")),
+              ScriptCommands.translate("db.users.createIndex({a: 1, b: -1})"));
+        assertEquals(List.of(json("{createIndexes: 'users', indexes: [{key: {text: 'text'}, name: 'search', unique: false}]}")),
+              ScriptCommands.translate("db.users.createIndex({text: 'text'}, {name: 'search', unique: false})"));
+        assertEquals(List.of(json("{drop: 'users'}")), ScriptCommands.translate("db.users.drop()"));
+    }
+
+    @Test
+    void acceptsShellNotation() {
+        assertEquals(List.of(json("{insert: 'users', documents: [{_id: {$oid: '5f1d7a6b8c9d0e1f2a3b4c5d'}, n: 1}]}")),
+              ScriptCommands.translate("db.users.insert({_id: ObjectId(\"5f1d7a6b8c9d0e1f2a3b4c5d\"), n: NumberInt(1)})"));
+    }
+
+    @Test
+    void rejectsUnsupportedStatements() {
+        assertThrows(IllegalArgumentException.class, () -> ScriptCommands.translate("print('hello')"));
+        assertThrows(IllegalArgumentException.class, () -> ScriptCommands.translate("db.users.aggregate([])"));
+        assertThrows(IllegalArgumentException.class, () -> ScriptCommands.translate("db.users.insert({a: )"));
+        assertThrows(IllegalArgumentException.class, () -> ScriptCommands.translate("db.users.update({a: 1})"));
+    }
+
+    @Test
+    void splitsInsertsByDocumentCount() {
+        BsonArray documents = new BsonArray();
+        for (int i = 0; i < ScriptCommands.MAX_BATCH_DOCUMENTS + 1; i++) {
+            documents.add(new BsonDocument("i", new BsonInt32(i)));
+        }
+
+        List<BsonDocument> commands = ScriptCommands.insertCommands(new BsonString("users"), documents);
+        assertEquals(2, commands.size());
+        assertEquals(ScriptCommands.MAX_BATCH_DOCUMENTS, commands.get(0).getArray("documents").size());
+        assertEquals(1, commands.get(1).getArray("documents").size());
+        assertEquals(new BsonInt32(ScriptCommands.MAX_BATCH_DOCUMENTS), commands.get(1).getArray("documents").get(0).asDocument().get("i"));
+    }
+
+    @Test
+    void splitsInsertsBySize() {
+        String text = "x".repeat(ScriptCommands.MAX_BATCH_BYTES / 3);
+        BsonArray documents = new BsonArray();
+        for (int i = 0; i < 4; i++) {
+            documents.add(new BsonDocument("text", new BsonString(text)));
+        }
+
+        List<BsonDocument> commands = ScriptCommands.insertCommands(new BsonString("users"), documents);
+        assertEquals(2, commands.size());
+        assertEquals(2, commands.get(0).getArray("documents").size());
+        assertEquals(2, commands.get(1).getArray("documents").size());
+    }
+
+    @Test
+    void failsOnWriteErrors() {
+        BsonDocument insert = json("{insert: 'users', documents: [{_id: 1}]}");
+        ScriptCommands.verify(insert, Document.parse("{ok: 1, n: 1}"));
+        assertThrows(IllegalStateException.class,
+              () -> ScriptCommands.verify(insert, Document.parse("{ok: 1, n: 0, writeErrors: [{index: 0, code: 11000, errmsg: 'duplicate key'}]}")));
+        assertThrows(IllegalStateException.class,
+              () -> ScriptCommands.verify(insert, Document.parse("{ok: 1, n: 1, writeConcernError: {code: 64, errmsg: 'waiting for replication timed out'}}")));
+    }
+
+    private static BsonDocument json(String json) {
+        return BsonDocument.parse(json);
+    }
+}
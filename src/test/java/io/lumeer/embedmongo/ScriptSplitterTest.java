@@ -0,0 +1,82 @@
+/*
+ * Lumeer: Modern Data Definition and Processing Platform
+ *
+ * Copyright (C) since 2017 Lumeer.io, s.r.o. and/or its affiliates.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.lumeer.embedmongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ScriptSplitterTest {
+
+    @Test
+    void splitsAtSemicolons() throws IOException {
+        assertEquals(List.of("db.a.drop()", "db.b.drop()"), split("db.a.drop(); db.b.drop();"));
+    }
+
+    @Test
+    void splitsAtLineEndsAfterCompleteCalls() throws IOException {
+        assertEquals(List.of("db.a.drop()", "db.b.insert({x: 1})"), split("db.a.drop()\ndb.b.insert({x: 1})\n"));
+    }
+
+    @Test
+    void keepsMultiLineStatementsTogether() throws IOException {
+        assertEquals(List.of("db.a.insertMany([\n  {x: 1},\n  {x: 2}\n])"), split("db.a.insertMany([\n  {x: 1},\n  {x: 2}\n])\n"));
+    }
+
+    @Test
+    void ignoresSeparatorsInStrings() throws IOException {
+        assertEquals(List.of("db.a.insert({s: \"a;b\\n)\", t: 'c\\';d', u: `e;f`})"),
+              split("db.a.insert({s: \"a;b\\n)\", t: 'c\\';d', u: `e;f`});"));
+    }
+
+    @Test
+    void leavesOutComments() throws IOException {
+        assertEquals(List.of("db.a.drop()", "db.b.drop()"), split("// drop a; and b\ndb.a.drop() /* then; */\n/* b\n */db.b.drop()"));
+    }
+
+    @Test
+    void keepsCommentMarkersInStrings() throws IOException {
+        assertEquals(List.of("db.a.insert({url: \"http://x/*y*/\"})"), split("db.a.insert({url: \"http://x/*y*/\"})"));
+    }
+
+    @Test
+    void returnsTheLastStatementWithoutSeparator() throws IOException {
+        assertEquals(List.of("db.a.drop()", "db.b.drop()"), split("db.a.drop();\n\n;db.b.drop()"));
+    }
+
+    @Test
+    void returnsNothingForEmptyScripts() throws IOException {
+        assertEquals(List.of(), split(" \n// only a comment\n;;\n"));
+    }
+
+    private static List<String> split(String script) throws IOException {
+        ScriptSplitter splitter = new ScriptSplitter(new StringReader(script));
+        List<String> statements = new ArrayList<>();
+        String statement;
+        while ((statement = splitter.next()) != null) {
+            statements.add(statement);
+        }
+        return statements;
+    }
+}